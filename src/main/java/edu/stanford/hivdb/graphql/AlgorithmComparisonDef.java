@@ -23,17 +23,32 @@ import static graphql.Scalars.*;
 import static graphql.schema.GraphQLArgument.newArgument;
 import static graphql.schema.GraphQLObjectType.newObject;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
 import static graphql.schema.GraphQLInputObjectType.newInputObject;
 import static graphql.schema.GraphQLInputObjectField.newInputObjectField;
 
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.stanford.hivdb.drugs.DrugClass;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
+import edu.stanford.hivdb.viruses.Gene;
 import edu.stanford.hivdb.viruses.Virus;
 import edu.stanford.hivdb.drugresistance.algorithm.AlgorithmComparison;
 import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
@@ -45,22 +60,103 @@ import static edu.stanford.hivdb.graphql.DrugResistanceAlgorithmDef.oASIAlgorith
 
 public class AlgorithmComparisonDef {
 
+	private static final Cache<List<Object>, DrugResistanceAlgorithm<?>> customAlgorithmCache =
+		CacheBuilder.newBuilder().maximumSize(64).build();
+
+	private static final Cache<List<Object>, List<Pair<DrugClass<?>, Object>>> geneComparisonCache =
+		CacheBuilder.newBuilder().maximumSize(50000).build();
+
+	private static RuntimeException rethrowCause(Exception e) {
+		// errors of the loaders (e.g. invalid ASI XML) are rethrown as is
+		Throwable cause = e.getCause();
+		if (cause instanceof RuntimeException) {
+			return (RuntimeException) cause;
+		}
+		return new RuntimeException(cause);
+	}
+
+	/**
+	 * Keys custom algorithms by the hash of their ASI XML, so that cache
+	 * keys don't retain the XML text. Name and XML can be null.
+	 */
+	private static List<Object> makeCustomAlgorithmKey(Virus<?> virusIns, String name, String xmlText) {
+		return Arrays.asList(
+			virusIns.getName(), name,
+			xmlText == null ? null : Hashing.sha256().hashString(xmlText, StandardCharsets.UTF_8).toString());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <VirusT extends Virus<VirusT>> DrugResistanceAlgorithm<VirusT> getCustomAlgorithm(
+			VirusT virusIns, String name, String xmlText) {
+		try {
+			return (DrugResistanceAlgorithm<VirusT>) customAlgorithmCache.get(
+				makeCustomAlgorithmKey(virusIns, name, xmlText),
+				() -> new DrugResistanceAlgorithm<>(
+					/* name =      */ name,
+					/* virus =     */ virusIns,
+					/* xmlText =   */ xmlText));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw rethrowCause(e);
+		}
+	}
+
+	private static <VirusT extends Virus<VirusT>> List<Pair<DrugClass<?>, Object>> compareGeneMutations(
+			Object algKey,
+			DrugResistanceAlgorithm<VirusT> algorithm,
+			Gene<VirusT> gene,
+			MutationSet<VirusT> geneMuts) {
+		try {
+			return geneComparisonCache.get(
+				Arrays.asList(algKey, gene, geneMuts),
+				() -> (
+					new AlgorithmComparison<>(geneMuts, List.of(algorithm))
+					.getComparisonResults()
+					.stream()
+					.map(cds -> Pair.<DrugClass<?>, Object>of(cds.getDrug().getDrugClass(), cds))
+					.collect(Collectors.toList())
+				));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw rethrowCause(e);
+		}
+	}
+
 	protected static <VirusT extends Virus<VirusT>> List<Map<String, Object>> fetchAlgorithmComparisonData(
 			VirusT virusIns,
 			MutationSet<VirusT> allMuts,
 			Collection<String> algorithmNames,
 			Map<String, String> customAlgorithms) {
-		Collection<DrugResistanceAlgorithm<VirusT>> algorithms = virusIns.getDrugResistAlgorithms(algorithmNames); 
-		customAlgorithms.entrySet().stream().forEach(e -> {
-			algorithms.add(new DrugResistanceAlgorithm<>(
-				/* name =      */ e.getKey(),
-				/* virus =     */ virusIns,
-				/* xmlText =   */ e.getValue()));
-		});
-		AlgorithmComparison<VirusT> algCmp = new AlgorithmComparison<>(allMuts, algorithms);
-		return algCmp.getComparisonResults()
-			.stream()
-			.collect(Collectors.groupingBy(cds -> cds.getDrug().getDrugClass()))
+		// Built-in algorithms are identified by their names, custom ones by
+		// their names and ASI XML hash so that an edited XML never hits old
+		// results
+		Map<Object, DrugResistanceAlgorithm<VirusT>> algorithms = new LinkedHashMap<>();
+		for (DrugResistanceAlgorithm<VirusT> alg : virusIns.getDrugResistAlgorithms(algorithmNames)) {
+			algorithms.put(Arrays.asList(virusIns.getName(), alg.getName()), alg);
+		}
+		for (Map.Entry<String, String> e : customAlgorithms.entrySet()) {
+			algorithms.put(
+				makeCustomAlgorithmKey(virusIns, e.getKey(), e.getValue()),
+				getCustomAlgorithm(virusIns, e.getKey(), e.getValue()));
+		}
+
+		// the gene partition is computed once and shared by all algorithms
+		Map<Gene<VirusT>, MutationSet<VirusT>> mutsByGene = allMuts.groupByGene();
+		List<Triple<Object, DrugResistanceAlgorithm<VirusT>, Gene<VirusT>>> tasks = new ArrayList<>();
+		for (Map.Entry<Object, DrugResistanceAlgorithm<VirusT>> alg : algorithms.entrySet()) {
+			for (Gene<VirusT> gene : mutsByGene.keySet()) {
+				tasks.add(Triple.of(alg.getKey(), alg.getValue(), gene));
+			}
+		}
+		return tasks
+			.parallelStream()
+			.flatMap(task -> compareGeneMutations(
+				task.getLeft(), task.getMiddle(), task.getRight(),
+				mutsByGene.get(task.getRight())
+			).stream())
+			.collect(Collectors.groupingBy(
+				Pair::getLeft,
+				LinkedHashMap::new,
+				Collectors.mapping(Pair::getRight, Collectors.toList())
+			))
 			.entrySet()
 			.stream()
 			.map(e -> {
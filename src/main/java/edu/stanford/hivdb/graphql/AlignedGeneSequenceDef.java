@@ -22,6 +22,8 @@ import graphql.schema.*;
 import static graphql.Scalars.*;
 import static graphql.schema.GraphQLObjectType.newObject;
 
+import java.util.Arrays;
+
 import edu.stanford.hivdb.sequences.AlignedGeneSeq;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
 import edu.stanford.hivdb.viruses.Virus;
@@ -34,6 +36,7 @@ import static edu.stanford.hivdb.graphql.MutationSetDef.*;
 import static edu.stanford.hivdb.graphql.GeneDef.*;
 import static edu.stanford.hivdb.graphql.UnsequencedRegionsDef.*;
 import static edu.stanford.hivdb.graphql.FrameShiftDef.*;
+import static edu.stanford.hivdb.graphql.PositionRangeDef.*;
 
 public class AlignedGeneSequenceDef {
 
@@ -45,6 +48,14 @@ public class AlignedGeneSequenceDef {
 				coordinates("AlignedGeneSequence", "mutations"),
 				newMutationSetDataFetcher(virusIns, "mutations")
 			)
+			.dataFetcher(
+				coordinates("AlignedGeneSequence", "alignedNAs"),
+				alignedNAsFetcher
+			)
+			.dataFetcher(
+				coordinates("AlignedGeneSequence", "alignedAAs"),
+				alignedAAsFetcher
+			)
 			.dataFetcher(
 				coordinates("AlignedGeneSequence", "adjustedAlignedAAs"),
 				adjustedAlignedAAsFetcher
@@ -57,24 +68,49 @@ public class AlignedGeneSequenceDef {
 		);
 	}
 	
+	private static String sliceAlignedSequence(DataFetchingEnvironment env, String aligned, int ntsPerAA) {
+		AlignedGeneSeq<?> seq = env.getSource();
+		if (aligned == null || !hasPositionRange(env)) {
+			return aligned;
+		}
+		long firstAA = seq.getFirstAA();
+		long from = Math.max(getFromPosition(env), firstAA);
+		long to = Math.min(getToPosition(env), seq.getLastAA());
+		if (from > to) {
+			return "";
+		}
+		int start = (int) Math.min((from - firstAA) * ntsPerAA, aligned.length());
+		int stop = (int) Math.min((to - firstAA + 1) * ntsPerAA, aligned.length());
+		return aligned.substring(start, stop);
+	}
+
+	public static DataFetcher<String> alignedNAsFetcher = env -> {
+		AlignedGeneSeq<?> seq = env.getSource();
+		return sliceAlignedSequence(env, seq.getAlignedNAs(), 3);
+	};
+
+	public static DataFetcher<String> alignedAAsFetcher = env -> {
+		AlignedGeneSeq<?> seq = env.getSource();
+		return sliceAlignedSequence(env, seq.getAlignedAAs(), 1);
+	};
+
+	// Memoized per (sequence, targetStrain) in the per-request analysis
+	// context, so that reports requesting several strains don't recompute
+	// the adjusted alignments.
 	public static DataFetcher<String> adjustedAlignedAAsFetcher = env -> {
 		AlignedGeneSeq<?> seq = env.getSource();
 		String strain = env.getArgument("targetStrain");
-		if (strain == null) {
-			return seq.getAdjustedAlignedAAs();
-		} else {
-			return seq.getAdjustedAlignedAAs(strain);
-		}
+		return AnalysisContext.memoize(
+			env, Arrays.asList("adjustedAlignedAAs", seq, strain),
+			() -> strain == null ? seq.getAdjustedAlignedAAs() : seq.getAdjustedAlignedAAs(strain));
 	};
 
 	public static DataFetcher<String> adjustedAlignedNAsFetcher = env -> {
 		AlignedGeneSeq<?> seq = env.getSource();
 		String strain = env.getArgument("targetStrain");
-		if (strain == null) {
-			return seq.getAdjustedAlignedNAs();
-		} else {
-			return seq.getAdjustedAlignedNAs(strain);
-		}
+		return AnalysisContext.memoize(
+			env, Arrays.asList("adjustedAlignedNAs", seq, strain),
+			() -> strain == null ? seq.getAdjustedAlignedNAs() : seq.getAdjustedAlignedNAs(strain));
 	};
 
 	public static SimpleMemoizer<GraphQLObjectType> oAlignedGeneSequence = new SimpleMemoizer<>(
@@ -132,12 +168,12 @@ public class AlignedGeneSequenceDef {
 				.name("prettyPairwise")
 				.description("Formatted pairwise output of the aligned sequence.")
 			)
-			.field(field -> field
+			.field(field -> positionRangeArgs.apply(field)
 				.type(GraphQLString)
 				.name("alignedNAs")
 				.description("Aligned DNA sequence without insertions and insertion gaps.")
 			)
-			.field(field -> field
+			.field(field -> positionRangeArgs.apply(field)
 				.type(GraphQLString)
 				.name("alignedAAs")
 				.description(
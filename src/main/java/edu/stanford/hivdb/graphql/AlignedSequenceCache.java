@@ -0,0 +1,218 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Content-addressed cache of alignment results.
+ *
+ * Only the {@link CachedAlignment} is cached; every input gets its own
+ * {@link AlignedSequence}, with its own per-gene sequences, which carries
+ * its own header and lazy state.
+ *
+ * Entries are keyed by the SHA-256 of the normalized nucleotide sequence,
+ * the virus and the program/algorithm version, and are bounded by their
+ * estimated retained bytes (env `ALIGNMENT_CACHE_MAXIMUM_BYTES`, zero
+ * disables the cache). Misses fall back to the optional on-disk store
+ * ({@link AlignedSequenceDiskStore}) before calling the aligner through
+ * {@link AlignerBatcher}.
+ */
+public class AlignedSequenceCache {
+
+	private static final long MAXIMUM_CACHE_BYTES;
+	private static final String PROGRAM_VERSION;
+	private static final Cache<String, CachedAlignment<?>> cache;
+	private static final AlignedSequenceDiskStore diskStore;
+
+	static {
+		String maxBytes = System.getenv("ALIGNMENT_CACHE_MAXIMUM_BYTES");
+		if (maxBytes == null) {
+			maxBytes = "268435456";
+		}
+		MAXIMUM_CACHE_BYTES = Long.parseLong(maxBytes);
+
+		String version;
+		try {
+			version = SierraVersionDef.loadSierraVersion().get("text");
+		}
+		catch (RuntimeException e) {
+			version = "unknown";
+		}
+		PROGRAM_VERSION = version;
+
+		diskStore = AlignedSequenceDiskStore.fromEnv(PROGRAM_VERSION + "/");
+
+		cache = CacheBuilder.newBuilder()
+			.maximumWeight(MAXIMUM_CACHE_BYTES)
+			.weigher((String key, CachedAlignment<?> alignment) -> alignment.estimateRetainedBytes())
+			.build();
+	}
+
+	private static String normalize(Sequence seq) {
+		return seq.getSequence().replaceAll("\\s", "").toUpperCase();
+	}
+
+	public static String makeKey(Virus<?> virusIns, Sequence seq) {
+		DrugResistanceAlgorithm<?> defaultDRAlgo = virusIns.getDefaultDrugResistAlgorithm();
+		return String.join(
+			"/",
+			PROGRAM_VERSION,
+			virusIns.getName(),
+			defaultDRAlgo == null ? "" : defaultDRAlgo.getName(),
+			Hashing.sha256().hashString(normalize(seq), StandardCharsets.UTF_8).toString()
+		);
+	}
+
+	private static <VirusT extends Virus<VirusT>> CachedAlignment<VirusT> loadFromDisk(VirusT virusIns, String key) {
+		byte[] stored = diskStore.get(key);
+		if (stored == null) {
+			return null;
+		}
+		CachedAlignment<VirusT> alignment;
+		try {
+			alignment = CachedAlignmentCodec.decode(virusIns, stored);
+		}
+		catch (IOException | RuntimeException e) {
+			// written by an incompatible build; realign it
+			return null;
+		}
+		cache.put(key, alignment);
+		return alignment;
+	}
+
+	private static void saveToDisk(String key, CachedAlignment<?> alignment) {
+		byte[] encoded;
+		try {
+			encoded = CachedAlignmentCodec.encode(alignment);
+		}
+		catch (RuntimeException e) {
+			// the alignment is still served from memory
+			return;
+		}
+		diskStore.put(key, encoded);
+	}
+
+	/**
+	 * Aligns the given sequences and returns the results in input order.
+	 *
+	 * Identical sequences in one payload are aligned only once; each of them
+	 * still gets its own AlignedSequence with its own header.
+	 */
+	public static <VirusT extends Virus<VirusT>> List<AlignedSequence<VirusT>> align(VirusT virusIns, List<Sequence> seqs) {
+		return align(virusIns, seqs, null);
+	}
+
+	/**
+	 * Same as {@link #align(Virus, List)}, and adds the alignments of cache
+	 * misses to given scheduling report.
+	 */
+	public static <VirusT extends Virus<VirusT>> List<AlignedSequence<VirusT>> align(
+		VirusT virusIns, List<Sequence> seqs, AlignmentScheduler.Report report
+	) {
+		return CompletableFutures.join(alignAsync(virusIns, seqs, report));
+	}
+
+	/**
+	 * Same as {@link #align(Virus, List, AlignmentScheduler.Report)}, but
+	 * returns the futures of the results, so that callers can start the
+	 * downstream analysis of each sequence as soon as it is aligned.
+	 */
+	public static <VirusT extends Virus<VirusT>> List<CompletableFuture<AlignedSequence<VirusT>>> alignAsync(
+		VirusT virusIns, List<Sequence> seqs, AlignmentScheduler.Report report
+	) {
+		return alignAsync(virusIns, seqs, report, RequestDeadline.NONE);
+	}
+
+	/**
+	 * Same as {@link #alignAsync(Virus, List, AlignmentScheduler.Report)};
+	 * cache misses which haven't started aligning by the deadline fail with
+	 * a timeout.
+	 */
+	public static <VirusT extends Virus<VirusT>> List<CompletableFuture<AlignedSequence<VirusT>>> alignAsync(
+		VirusT virusIns, List<Sequence> seqs, AlignmentScheduler.Report report, RequestDeadline deadline
+	) {
+		Map<String, List<Integer>> indicesByKey = new LinkedHashMap<>();
+		for (int i = 0; i < seqs.size(); i ++) {
+			indicesByKey
+				.computeIfAbsent(makeKey(virusIns, seqs.get(i)), k -> new ArrayList<>())
+				.add(i);
+		}
+
+		List<CompletableFuture<AlignedSequence<VirusT>>> results = new ArrayList<>(
+			Collections.nCopies(seqs.size(), null));
+		List<String> missedKeys = new ArrayList<>();
+		List<Sequence> missedSeqs = new ArrayList<>();
+		for (Map.Entry<String, List<Integer>> e : indicesByKey.entrySet()) {
+			@SuppressWarnings("unchecked")
+			CachedAlignment<VirusT> alignment = (CachedAlignment<VirusT>) cache.getIfPresent(e.getKey());
+			if (alignment == null && diskStore != null) {
+				alignment = loadFromDisk(virusIns, e.getKey());
+			}
+			if (alignment == null) {
+				missedKeys.add(e.getKey());
+				missedSeqs.add(seqs.get(e.getValue().get(0)));
+				continue;
+			}
+			for (int idx : e.getValue()) {
+				results.set(idx, CompletableFuture.completedFuture(
+					alignment.toAlignedSequence(seqs.get(idx))));
+			}
+		}
+
+		if (!missedSeqs.isEmpty()) {
+			List<CompletableFuture<AlignedSequence<VirusT>>> alignedFutures = (
+				AlignerBatcher.submit(virusIns, missedSeqs, report, deadline));
+			for (int i = 0; i < alignedFutures.size(); i ++) {
+				String key = missedKeys.get(i);
+				// cache and disk writes are kept off the aligner workers
+				CompletableFuture<CachedAlignment<VirusT>> future = alignedFutures.get(i).thenApplyAsync(alignedSeq -> {
+					CachedAlignment<VirusT> alignment = CachedAlignment.of(alignedSeq);
+					cache.put(key, alignment);
+					if (diskStore != null) {
+						saveToDisk(key, alignment);
+					}
+					return alignment;
+				}, AnalysisPlan.getStageExecutor());
+				for (int idx : indicesByKey.get(key)) {
+					Sequence input = seqs.get(idx);
+					results.set(idx, future.thenApply(alignment -> alignment.toAlignedSequence(input)));
+				}
+			}
+		}
+		return results;
+	}
+
+}
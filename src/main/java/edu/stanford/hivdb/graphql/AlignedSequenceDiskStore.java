@@ -0,0 +1,362 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package edu.stanford.hivdb.graphql;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Local-file store of encoded analysis results which survives restarts.
+ *
+ * Records are appended to fixed-size segment files. A segment is written
+ * with positional writes while it is active and memory-mapped once, read
+ * only, after it is full. When the store grows over its size cap the
+ * oldest segment is deleted with all its records. Records whose key
+ * doesn't start with the given key prefix (e.g. written by a previous
+ * program version) are not indexed on open and age out with their
+ * segments.
+ *
+ * Writers only synchronize to reserve space in the active segment; reads
+ * and writes of the data itself run concurrently. Any I/O failure is
+ * logged and disables the store, after which it behaves as empty.
+ */
+public class AlignedSequenceDiskStore {
+
+	private static final Logger LOGGER = Logger.getLogger(AlignedSequenceDiskStore.class.getName());
+	private static final int RECORD_MAGIC = 0x53524432;
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+	private static final String SEGMENT_PREFIX = "aligned-sequences.";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int NUM_SEGMENTS = 8;
+
+	/**
+	 * Opens the store configured by env `ALIGNMENT_DISK_STORE_PATH` and
+	 * `ALIGNMENT_DISK_STORE_MAXIMUM_BYTES`; returns null if the disk tier
+	 * is not enabled or failed to open.
+	 */
+	public static AlignedSequenceDiskStore fromEnv(String keyPrefix) {
+		String path = System.getenv("ALIGNMENT_DISK_STORE_PATH");
+		String maxBytes = System.getenv("ALIGNMENT_DISK_STORE_MAXIMUM_BYTES");
+		if (maxBytes == null) {
+			maxBytes = "1073741824";
+		}
+		if (path == null || path.isEmpty()) {
+			return null;
+		}
+		try {
+			return new AlignedSequenceDiskStore(Paths.get(path), Long.parseLong(maxBytes), keyPrefix);
+		}
+		catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Alignment disk store is disabled", e);
+			return null;
+		}
+	}
+
+	private static class Segment {
+		private final long id;
+		private final Path path;
+		private final FileChannel channel;
+		// end of the reserved space
+		private final AtomicLong reserved;
+		private volatile MappedByteBuffer mapped;
+
+		private Segment(long id, Path path) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.channel = FileChannel.open(
+				path,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+			this.reserved = new AtomicLong(channel.size());
+		}
+
+		private void read(ByteBuffer dst, long offset, boolean sealed) throws IOException {
+			if (sealed) {
+				MappedByteBuffer buf = mapped;
+				if (buf == null) {
+					synchronized (this) {
+						if (mapped == null) {
+							mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, reserved.get());
+						}
+						buf = mapped;
+					}
+				}
+				ByteBuffer src = buf.duplicate();
+				src.position((int) offset);
+				src.limit((int) offset + dst.remaining());
+				dst.put(src);
+			}
+			else {
+				while (dst.hasRemaining()) {
+					if (channel.read(dst, offset + dst.position()) < 0) {
+						throw new IOException("Unexpected end of segment " + path);
+					}
+				}
+			}
+		}
+
+		private void write(ByteBuffer src, long offset) throws IOException {
+			while (src.hasRemaining()) {
+				channel.write(src, offset + src.position());
+			}
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				// the file is deleted anyway
+			}
+			// a mapping is released once the buffer is unreachable
+			mapped = null;
+		}
+	}
+
+	private static class Location {
+		private final Segment segment;
+		private final long valueOffset;
+		private final int valueSize;
+		private final long crc;
+
+		private Location(Segment segment, long valueOffset, int valueSize, long crc) {
+			this.segment = segment;
+			this.valueOffset = valueOffset;
+			this.valueSize = valueSize;
+			this.crc = crc;
+		}
+	}
+
+	private final Path directory;
+	private final long segmentBytes;
+	private final String keyPrefix;
+	private final Map<String, Location> index = new ConcurrentHashMap<>();
+	// oldest first; the last one is active
+	private final Deque<Segment> segments = new ConcurrentLinkedDeque<>();
+	private volatile Segment active;
+	private volatile boolean disabled;
+
+	public AlignedSequenceDiskStore(Path directory, long maximumBytes, String keyPrefix) throws IOException {
+		Files.createDirectories(directory);
+		this.directory = directory;
+		// a single mapping can not exceed 2GB
+		this.segmentBytes = Math.min(Math.max(maximumBytes / NUM_SEGMENTS, 1 << 20), Integer.MAX_VALUE);
+		this.keyPrefix = keyPrefix;
+		open();
+	}
+
+	private void open() throws IOException {
+		List<Long> ids = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(
+				directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					ids.add(Long.parseLong(name.substring(
+						SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				}
+				catch (NumberFormatException e) {
+					// not a segment of this store
+				}
+			}
+		}
+		ids.sort(null);
+		for (long id : ids) {
+			Segment segment = new Segment(id, segmentPath(id));
+			segments.addLast(segment);
+			load(segment);
+		}
+		if (segments.isEmpty()) {
+			segments.addLast(new Segment(0, segmentPath(0)));
+		}
+		active = segments.peekLast();
+		evict();
+	}
+
+	private Path segmentPath(long id) {
+		return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	private void load(Segment segment) throws IOException {
+		long size = segment.reserved.get();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (offset + HEADER_SIZE <= size) {
+			header.clear();
+			segment.read(header, offset, false);
+			header.flip();
+			int magic = header.getInt();
+			int keySize = header.getInt();
+			int valueSize = header.getInt();
+			long crc = header.getLong();
+			long end = offset + HEADER_SIZE + keySize + valueSize;
+			if (magic != RECORD_MAGIC || keySize < 0 || valueSize < 0 || end > size) {
+				break;
+			}
+			ByteBuffer key = ByteBuffer.allocate(keySize);
+			segment.read(key, offset + HEADER_SIZE, false);
+			String keyText = new String(key.array(), StandardCharsets.UTF_8);
+			if (keyText.startsWith(keyPrefix)) {
+				index.put(keyText, new Location(segment, offset + HEADER_SIZE + keySize, valueSize, crc));
+			}
+			offset = end;
+		}
+		if (offset < size) {
+			// drop the partially written tail left by an interrupted process
+			segment.channel.truncate(offset);
+			segment.reserved.set(offset);
+		}
+	}
+
+	private void disable(String action, Exception e) {
+		if (!disabled) {
+			disabled = true;
+			LOGGER.log(Level.WARNING, "Alignment disk store is disabled after failing to " + action, e);
+		}
+		index.clear();
+	}
+
+	private static long checksum(ByteBuffer value) {
+		CRC32 crc = new CRC32();
+		crc.update(value.duplicate());
+		return crc.getValue();
+	}
+
+	/**
+	 * Returns the stored value, or null if the key is not stored or the
+	 * record is damaged.
+	 */
+	public byte[] get(String key) {
+		Location loc = disabled ? null : index.get(key);
+		if (loc == null) {
+			return null;
+		}
+		ByteBuffer value = ByteBuffer.allocate(loc.valueSize);
+		try {
+			loc.segment.read(value, loc.valueOffset, loc.segment != active);
+		}
+		catch (IOException | RuntimeException e) {
+			if (!segments.contains(loc.segment)) {
+				// evicted while reading
+				return null;
+			}
+			disable("read", e);
+			return null;
+		}
+		value.flip();
+		if (checksum(value) != loc.crc) {
+			index.remove(key, loc);
+			return null;
+		}
+		return value.array();
+	}
+
+	/**
+	 * Appends the given value.
+	 *
+	 * @return false if the value is too large or the store is disabled
+	 */
+	public boolean put(String key, byte[] value) {
+		if (disabled || !key.startsWith(keyPrefix)) {
+			return false;
+		}
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		long recordSize = HEADER_SIZE + keyBytes.length + value.length;
+		if (recordSize > segmentBytes) {
+			return false;
+		}
+		ByteBuffer valueBuf = ByteBuffer.wrap(value);
+		long crc = checksum(valueBuf);
+		ByteBuffer buf = ByteBuffer.allocate((int) recordSize);
+		buf.putInt(RECORD_MAGIC);
+		buf.putInt(keyBytes.length);
+		buf.putInt(value.length);
+		buf.putLong(crc);
+		buf.put(keyBytes);
+		buf.put(value);
+		buf.flip();
+
+		try {
+			Segment segment;
+			long offset;
+			boolean rolled = false;
+			synchronized (this) {
+				segment = active;
+				offset = segment.reserved.get();
+				if (offset + recordSize > segmentBytes) {
+					segment = new Segment(segment.id + 1, segmentPath(segment.id + 1));
+					segments.addLast(segment);
+					active = segment;
+					offset = 0;
+					rolled = true;
+				}
+				segment.reserved.set(offset + recordSize);
+			}
+			segment.write(buf, offset);
+			index.put(key, new Location(segment, offset + HEADER_SIZE + keyBytes.length, value.length, crc));
+			if (rolled) {
+				evict();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			disable("write", e);
+			return false;
+		}
+		return true;
+	}
+
+	// only called on open and by the writer which added a segment
+	private void evict() throws IOException {
+		while (segments.size() > NUM_SEGMENTS) {
+			Segment oldest = segments.pollFirst();
+			index.values().removeIf(loc -> loc.segment == oldest);
+			oldest.close();
+			Files.deleteIfExists(oldest.path);
+		}
+	}
+
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.reserved.get();
+		}
+		return size;
+	}
+
+}
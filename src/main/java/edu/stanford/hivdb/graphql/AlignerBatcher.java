@@ -0,0 +1,193 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Optional coalescing stage in front of {@link Aligner#parallelAlign}.
+ *
+ * Small alignment calls from concurrent requests are gathered for up to
+ * env `ALIGNER_BATCH_WINDOW_MILLIS` milliseconds, or until env
+ * `ALIGNER_BATCH_MAXIMUM_SEQUENCES` (default 24) sequences are pending, and
+ * are then aligned as one batch. The results are routed back to each
+ * caller in its input order. A zero window (the default) disables the
+ * batching; calls of at least the maximum batch size are never batched.
+ */
+public class AlignerBatcher<VirusT extends Virus<VirusT>> {
+
+	private static final long BATCH_WINDOW_MILLIS;
+	private static final int MAXIMUM_BATCH_SEQUENCES;
+	private static final Map<Virus<?>, AlignerBatcher<?>> batchers = new ConcurrentHashMap<>();
+	private static final ScheduledExecutorService timer;
+	private static final ExecutorService alignExecutor;
+
+	static {
+		String window = System.getenv("ALIGNER_BATCH_WINDOW_MILLIS");
+		if (window == null) {
+			window = "0";
+		}
+		BATCH_WINDOW_MILLIS = Long.parseLong(window);
+		String maxSeqs = System.getenv("ALIGNER_BATCH_MAXIMUM_SEQUENCES");
+		if (maxSeqs == null) {
+			maxSeqs = "24";
+		}
+		MAXIMUM_BATCH_SEQUENCES = Integer.parseInt(maxSeqs);
+		timer = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aligner-batch-timer").build());
+		alignExecutor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("aligner-batch-%d").build());
+	}
+
+	private final VirusT virusIns;
+	private List<Sequence> pendingSeqs = new ArrayList<>();
+	private List<CompletableFuture<AlignedSequence<VirusT>>> pendingFutures = new ArrayList<>();
+	private List<RequestDeadline> pendingDeadlines = new ArrayList<>();
+
+	private AlignerBatcher(VirusT virusIns) {
+		this.virusIns = virusIns;
+	}
+
+	/**
+	 * Aligns given sequences and returns the results in input order.
+	 *
+	 * @param report optional scheduling report of unbatched calls
+	 */
+	public static <VirusT extends Virus<VirusT>> List<AlignedSequence<VirusT>> parallelAlign(
+		VirusT virusIns, List<Sequence> seqs, AlignmentScheduler.Report report
+	) {
+		return CompletableFutures.join(submit(virusIns, seqs, report));
+	}
+
+	/**
+	 * Submits given sequences and returns the futures of their alignments
+	 * in input order.
+	 *
+	 * @param report optional scheduling report of unbatched calls
+	 */
+	public static <VirusT extends Virus<VirusT>> List<CompletableFuture<AlignedSequence<VirusT>>> submit(
+		VirusT virusIns, List<Sequence> seqs, AlignmentScheduler.Report report
+	) {
+		return submit(virusIns, seqs, report, RequestDeadline.NONE);
+	}
+
+	/**
+	 * Same as {@link #submit(Virus, List, AlignmentScheduler.Report)}.
+	 * Batched sequences whose deadline has passed when the batch is
+	 * flushed are dropped from the batch and fail with a timeout.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <VirusT extends Virus<VirusT>> List<CompletableFuture<AlignedSequence<VirusT>>> submit(
+		VirusT virusIns, List<Sequence> seqs, AlignmentScheduler.Report report, RequestDeadline deadline
+	) {
+		if (BATCH_WINDOW_MILLIS <= 0 || seqs.size() >= MAXIMUM_BATCH_SEQUENCES) {
+			return AlignmentScheduler.submit(virusIns, seqs, report, deadline);
+		}
+		AlignerBatcher<VirusT> batcher = (AlignerBatcher<VirusT>) batchers.computeIfAbsent(
+			virusIns, v -> new AlignerBatcher<>(virusIns));
+		return batcher.enqueue(seqs, deadline);
+	}
+
+	private List<CompletableFuture<AlignedSequence<VirusT>>> enqueue(List<Sequence> seqs, RequestDeadline deadline) {
+		List<CompletableFuture<AlignedSequence<VirusT>>> futures = new ArrayList<>();
+		boolean isFull;
+		boolean isFirst;
+		synchronized (this) {
+			isFirst = pendingSeqs.isEmpty();
+			for (Sequence seq : seqs) {
+				CompletableFuture<AlignedSequence<VirusT>> future = new CompletableFuture<>();
+				pendingSeqs.add(seq);
+				pendingFutures.add(future);
+				pendingDeadlines.add(deadline);
+				futures.add(future);
+			}
+			isFull = pendingSeqs.size() >= MAXIMUM_BATCH_SEQUENCES;
+		}
+		if (isFull) {
+			alignExecutor.execute(this::flush);
+		}
+		else if (isFirst) {
+			timer.schedule(() -> alignExecutor.execute(this::flush), BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return futures;
+	}
+
+	private void flush() {
+		List<Sequence> seqs;
+		List<CompletableFuture<AlignedSequence<VirusT>>> futures;
+		List<RequestDeadline> deadlines;
+		synchronized (this) {
+			if (pendingSeqs.isEmpty()) {
+				// already flushed because the batch was full
+				return;
+			}
+			seqs = pendingSeqs;
+			futures = pendingFutures;
+			deadlines = pendingDeadlines;
+			pendingSeqs = new ArrayList<>();
+			pendingFutures = new ArrayList<>();
+			pendingDeadlines = new ArrayList<>();
+		}
+		List<Sequence> liveSeqs = new ArrayList<>();
+		List<CompletableFuture<AlignedSequence<VirusT>>> liveFutures = new ArrayList<>();
+		for (int i = 0; i < seqs.size(); i ++) {
+			if (deadlines.get(i).isExpired()) {
+				futures.get(i).completeExceptionally(
+					RequestDeadline.newTimeoutException("sequence " + seqs.get(i).getHeader()));
+			}
+			else {
+				liveSeqs.add(seqs.get(i));
+				liveFutures.add(futures.get(i));
+			}
+		}
+		if (liveSeqs.isEmpty()) {
+			return;
+		}
+		seqs = liveSeqs;
+		futures = liveFutures;
+		try {
+			// one call, so the aligner sees the whole batch
+			List<AlignedSequence<VirusT>> alignedSeqs = Aligner.getInstance(virusIns).parallelAlign(seqs);
+			for (int i = 0; i < futures.size(); i ++) {
+				futures.get(i).complete(alignedSeqs.get(i));
+			}
+		}
+		catch (RuntimeException e) {
+			for (CompletableFuture<AlignedSequence<VirusT>> future : futures) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Length-aware scheduling of the sequences of one alignment batch.
+ *
+ * The sequences are split into at most as many chunks as the pool's
+ * parallelism (env `ALIGNMENT_SCHEDULER_PARALLELISM`, default the number
+ * of processors), longest-first, each to the chunk with the least total
+ * length, so that a long sequence doesn't start last and leave the other
+ * workers idle. Each chunk is aligned by one {@link Aligner#parallelAlign}
+ * call in the pool; results are returned in input order.
+ *
+ * The pool is shared by all requests, and fork-join subtasks (e.g. the
+ * parallel streams) of the aligner run in the pool of their calling
+ * worker, so the combined parallelism of the scheduler and the aligner
+ * stays within the pool's parallelism.
+ */
+public class AlignmentScheduler {
+
+	public static final String CONTEXT_KEY = "alignmentSchedule";
+
+	private static final ForkJoinPool pool;
+
+	static {
+		String parallelism = System.getenv("ALIGNMENT_SCHEDULER_PARALLELISM");
+		if (parallelism == null) {
+			parallelism = String.valueOf(Runtime.getRuntime().availableProcessors());
+		}
+		pool = new ForkJoinPool(Integer.parseInt(parallelism));
+	}
+
+	/**
+	 * Makespan, busy time and number of aligner calls of the scheduled
+	 * alignments. The busy time is the sum of the time spent by each
+	 * aligner call; with balanced chunks the makespan of a batch is close
+	 * to its busy time divided by the number of chunks.
+	 */
+	public static class Report {
+		private final AtomicLong numSequences = new AtomicLong();
+		private final AtomicLong numAlignerCalls = new AtomicLong();
+		private final AtomicLong makespanNanos = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("numSequences", numSequences.get());
+			result.put("numAlignerCalls", numAlignerCalls.get());
+			result.put("makespanMillis", makespanNanos.get() / 1000000.0);
+			result.put("busyMillis", busyNanos.get() / 1000000.0);
+			return result;
+		}
+	}
+
+	public static <VirusT extends Virus<VirusT>> List<CompletableFuture<AlignedSequence<VirusT>>> submit(
+		VirusT virusIns, List<Sequence> seqs, Report report
+	) {
+		return submit(virusIns, seqs, report, RequestDeadline.NONE);
+	}
+
+	/**
+	 * Splits the indices of given sequences into longest-first chunks of
+	 * balanced total length. Chunks are sorted by their total length.
+	 */
+	protected static List<List<Integer>> toChunks(List<Sequence> seqs, int maxChunks) {
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < seqs.size(); i ++) {
+			order.add(i);
+		}
+		order.sort(Comparator.comparingLong((Integer idx) -> seqs.get(idx).getLength()).reversed());
+
+		int numChunks = Math.min(maxChunks, seqs.size());
+		List<List<Integer>> chunks = new ArrayList<>();
+		long[] chunkLengths = new long[numChunks];
+		for (int i = 0; i < numChunks; i ++) {
+			chunks.add(new ArrayList<>());
+		}
+		for (int idx : order) {
+			int shortest = 0;
+			for (int i = 1; i < numChunks; i ++) {
+				if (chunkLengths[i] < chunkLengths[shortest]) {
+					shortest = i;
+				}
+			}
+			chunks.get(shortest).add(idx);
+			chunkLengths[shortest] += seqs.get(idx).getLength();
+		}
+		List<Integer> chunkOrder = new ArrayList<>();
+		for (int i = 0; i < numChunks; i ++) {
+			chunkOrder.add(i);
+		}
+		chunkOrder.sort(Comparator.comparingLong((Integer i) -> chunkLengths[i]).reversed());
+		List<List<Integer>> sortedChunks = new ArrayList<>(numChunks);
+		for (int i : chunkOrder) {
+			sortedChunks.add(chunks.get(i));
+		}
+		return sortedChunks;
+	}
+
+	/**
+	 * Submits given sequences in longest-first chunks and returns the
+	 * futures of their alignments in input order. Sequences of chunks
+	 * which haven't started aligning by the deadline fail with a timeout
+	 * instead.
+	 *
+	 * @param report optional report to which the batch is added
+	 */
+	public static <VirusT extends Virus<VirusT>> List<CompletableFuture<AlignedSequence<VirusT>>> submit(
+		VirusT virusIns, List<Sequence> seqs, Report report, RequestDeadline deadline
+	) {
+		var aligner = Aligner.getInstance(virusIns);
+		return submit(seqs, aligner::parallelAlign, pool, report, deadline);
+	}
+
+	/**
+	 * Same as {@link #submit(Virus, List, Report, RequestDeadline)}, with
+	 * given chunk aligner and pool.
+	 */
+	protected static <T> List<CompletableFuture<T>> submit(
+		List<Sequence> seqs, Function<List<Sequence>, List<T>> alignChunk,
+		ForkJoinPool pool, Report report, RequestDeadline deadline
+	) {
+		List<List<Integer>> chunks = toChunks(seqs, pool.getParallelism());
+
+		long startTime = System.nanoTime();
+		AtomicInteger remaining = new AtomicInteger(chunks.size());
+		List<CompletableFuture<T>> futures = new ArrayList<>(
+			Collections.nCopies(seqs.size(), null));
+		for (int idx = 0; idx < seqs.size(); idx ++) {
+			futures.set(idx, new CompletableFuture<>());
+		}
+		for (List<Integer> chunk : chunks) {
+			pool.execute(() -> {
+				List<Sequence> chunkSeqs = new ArrayList<>(chunk.size());
+				for (int idx : chunk) {
+					chunkSeqs.add(seqs.get(idx));
+				}
+				try {
+					if (deadline.isExpired()) {
+						for (int idx : chunk) {
+							futures.get(idx).completeExceptionally(
+								RequestDeadline.newTimeoutException("sequence " + seqs.get(idx).getHeader()));
+						}
+						return;
+					}
+					if (report != null) {
+						report.numAlignerCalls.incrementAndGet();
+					}
+					long chunkStart = System.nanoTime();
+					List<T> alignedSeqs;
+					try {
+						alignedSeqs = alignChunk.apply(chunkSeqs);
+					}
+					finally {
+						if (report != null) {
+							report.busyNanos.addAndGet(System.nanoTime() - chunkStart);
+						}
+					}
+					for (int i = 0; i < chunk.size(); i ++) {
+						futures.get(chunk.get(i)).complete(alignedSeqs.get(i));
+					}
+				}
+				catch (RuntimeException e) {
+					for (int idx : chunk) {
+						futures.get(idx).completeExceptionally(e);
+					}
+				}
+				finally {
+					if (report != null && remaining.decrementAndGet() == 0) {
+						report.numSequences.addAndGet(seqs.size());
+						report.makespanNanos.addAndGet(System.nanoTime() - startTime);
+					}
+				}
+			});
+		}
+		return futures;
+	}
+
+	/**
+	 * Aligns given sequences and returns the results in input order.
+	 *
+	 * @param report optional report to which the batch is added
+	 */
+	public static <VirusT extends Virus<VirusT>> List<AlignedSequence<VirusT>> parallelAlign(
+		VirusT virusIns, List<Sequence> seqs, Report report
+	) {
+		return CompletableFutures.join(submit(virusIns, seqs, report));
+	}
+
+}
@@ -0,0 +1,336 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.seqreads.GeneSequenceReads;
+import edu.stanford.hivdb.seqreads.SequenceReads;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.ValidationResult;
+import edu.stanford.hivdb.viruses.Virus;
+import graphql.schema.DataFetchingEnvironment;
+
+import edu.stanford.hivdb.graphql.AnalysisPlan.Stage;
+
+import static edu.stanford.hivdb.graphql.MutationPrevalenceDef.getBoundMutationPrevalenceList;
+
+/**
+ * Local context of one `SequenceAnalysis` or `SequenceReadsAnalysis` item.
+ *
+ * It is attached by the root fetchers and inherited by all descendant
+ * fields which don't replace the local context themselves. Results of
+ * expensive stages are memoized here for the duration of the request.
+ * Stages submitted by the {@link AnalysisPlan} are kept as in-flight
+ * futures until they complete; a field requesting a stage which hasn't
+ * started yet computes it itself instead of waiting for the stage pool.
+ * Nothing is computed once the deadline of the plan has passed.
+ */
+public class AnalysisContext {
+
+	private final Object source;
+	private final Object input;
+	private final AnalysisPlan plan;
+	private final Map<Object, Optional<?>> memo = new ConcurrentHashMap<>();
+	private final Map<Object, InFlight> inFlight = new ConcurrentHashMap<>();
+
+	private static class InFlight {
+		private final Supplier<?> supplier;
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final CompletableFuture<Optional<?>> future = new CompletableFuture<>();
+
+		private InFlight(Supplier<?> supplier) {
+			this.supplier = supplier;
+		}
+	}
+
+	/**
+	 * @param source the analyzed object
+	 * @param input the parsed input the source was built from, if available
+	 * @param plan the analysis plan of the root field
+	 */
+	public AnalysisContext(Object source, Object input, AnalysisPlan plan) {
+		this.source = source;
+		this.input = input;
+		this.plan = plan;
+	}
+
+	public static AnalysisContext of(DataFetchingEnvironment env) {
+		Object localContext = env.getLocalContext();
+		if (localContext instanceof AnalysisContext) {
+			return (AnalysisContext) localContext;
+		}
+		return null;
+	}
+
+	/**
+	 * Memoizes the supplied value in the local {@link AnalysisContext} of
+	 * the environment, or simply computes it when there is none.
+	 */
+	public static <T> T memoize(DataFetchingEnvironment env, Object key, Supplier<T> supplier) {
+		AnalysisContext ctx = of(env);
+		if (ctx == null) {
+			return supplier.get();
+		}
+		return ctx.memoize(key, supplier);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T memoize(Object key, Supplier<T> supplier) {
+		// computeIfAbsent is avoided since suppliers may memoize other keys
+		Optional<?> value = memo.get(key);
+		if (value == null) {
+			InFlight pending = inFlight.get(key);
+			if (pending == null) {
+				// the stage may have completed in the meantime
+				value = memo.get(key);
+			}
+			else {
+				try {
+					if (!pending.started.get()) {
+						plan.getDeadline().check(describe());
+					}
+					value = pending.started.compareAndSet(false, true) ?
+						run(key, pending) : pending.future.join();
+				}
+				catch (CompletionException e) {
+					// the stage failed; compute again to surface the error here
+					value = null;
+				}
+			}
+		}
+		if (value == null) {
+			plan.getDeadline().check(describe());
+			value = Optional.ofNullable(supplier.get());
+			Optional<?> prev = memo.putIfAbsent(key, value);
+			if (prev != null) {
+				value = prev;
+			}
+		}
+		return (T) value.orElse(null);
+	}
+
+	private Optional<?> run(Object key, InFlight pending) {
+		try {
+			Optional<?> value = Optional.ofNullable(pending.supplier.get());
+			Optional<?> prev = memo.putIfAbsent(key, value);
+			if (prev != null) {
+				value = prev;
+			}
+			pending.future.complete(value);
+			return value;
+		}
+		catch (RuntimeException e) {
+			pending.future.completeExceptionally(e);
+			throw new CompletionException(e);
+		}
+		finally {
+			inFlight.remove(key);
+		}
+	}
+
+	/**
+	 * Submits the computation of a memoized value to given executor.
+	 */
+	protected void memoizeAsync(Object key, Supplier<?> supplier, Executor executor) {
+		if (memo.containsKey(key)) {
+			return;
+		}
+		InFlight pending = new InFlight(supplier);
+		if (inFlight.putIfAbsent(key, pending) != null) {
+			return;
+		}
+		executor.execute(() -> {
+			if (pending.started.compareAndSet(false, true)) {
+				try {
+					run(key, pending);
+				}
+				catch (CompletionException e) {
+					// reported to the field which requests the value
+				}
+			}
+		});
+	}
+
+	public Object getSource() {
+		return source;
+	}
+
+	public Object getInput() {
+		return input;
+	}
+
+	public Sequence getInputSequence() {
+		if (input instanceof Sequence) {
+			return (Sequence) input;
+		}
+		if (source instanceof AlignedSequence) {
+			return ((AlignedSequence<?>) source).getInputSequence();
+		}
+		return null;
+	}
+
+	public AnalysisPlan getPlan() {
+		return plan;
+	}
+
+	private String describe() {
+		Sequence seq = getInputSequence();
+		if (seq != null) {
+			return "sequence " + seq.getHeader();
+		}
+		if (source instanceof SequenceReads) {
+			return "sequence reads " + ((SequenceReads<?>) source).getName();
+		}
+		return "item";
+	}
+
+	private List<Map<String, Object>> computeBoundMutationPrevalences(Collection<String> includeGenes) {
+		MutationSet<?> mutations;
+		if (source instanceof AlignedSequence) {
+			mutations = ((AlignedSequence<?>) source).getMutations();
+		}
+		else {
+			mutations = ((SequenceReads<?>) source).getMutations();
+		}
+		return getBoundMutationPrevalenceList(mutations, new LinkedHashSet<>(includeGenes));
+	}
+
+	public List<Map<String, Object>> getBoundMutationPrevalences(Collection<String> includeGenes) {
+		return memoize(
+			Arrays.asList(Stage.PREVALENCE, includeGenes),
+			() -> computeBoundMutationPrevalences(includeGenes));
+	}
+
+	@SuppressWarnings("unchecked")
+	public <VirusT extends Virus<VirusT>> List<AlignedGeneSeq<VirusT>> getAlignedGeneSequences(Collection<String> includeGenes) {
+		AlignedSequence<VirusT> alignedSeq = (AlignedSequence<VirusT>) source;
+		return memoize(
+			Arrays.asList("getAlignedGeneSequences", includeGenes),
+			() -> alignedSeq.getAlignedGeneSequences(new LinkedHashSet<>(includeGenes)));
+	}
+
+	private List<ValidationResult> computeValidationResults(Collection<String> includeGenes) {
+		AlignedSequence<?> alignedSeq = (AlignedSequence<?>) source;
+		return alignedSeq.getValidationResults(new LinkedHashSet<>(includeGenes));
+	}
+
+	public List<ValidationResult> getValidationResults(Collection<String> includeGenes) {
+		return memoize(
+			Arrays.asList("getValidationResults", includeGenes),
+			() -> computeValidationResults(includeGenes));
+	}
+
+	@SuppressWarnings("unchecked")
+	public <VirusT extends Virus<VirusT>> List<GeneSequenceReads<VirusT>> getAllGeneSequenceReads(Collection<String> includeGenes) {
+		SequenceReads<VirusT> seqReads = (SequenceReads<VirusT>) source;
+		return memoize(
+			Arrays.asList("getAllGeneSequenceReads", includeGenes),
+			() -> seqReads.getAllGeneSequenceReads(new LinkedHashSet<>(includeGenes)));
+	}
+
+	private <VirusT extends Virus<VirusT>> List<GeneDR<VirusT>> computeDrugResistance(
+		VirusT virusIns, String algName, Collection<String> includeGenes
+	) {
+		if (source instanceof SequenceReads) {
+			return GeneDRScorer.scoreGeneSequenceReads(
+				this.<VirusT>getAllGeneSequenceReads(includeGenes),
+				virusIns.getDrugResistAlgorithm(algName),
+				plan.getDeadline()
+			);
+		}
+		return GeneDRScorer.scoreAlignedGeneSeqs(
+			this.<VirusT>getAlignedGeneSequences(includeGenes),
+			virusIns.getDrugResistAlgorithm(algName),
+			plan.getDeadline()
+		);
+	}
+
+	public <VirusT extends Virus<VirusT>> List<GeneDR<VirusT>> getDrugResistance(
+		VirusT virusIns, String algName, Collection<String> includeGenes
+	) {
+		return memoize(
+			Arrays.asList(Stage.DRUG_RESISTANCE, algName, includeGenes),
+			() -> computeDrugResistance(virusIns, algName, includeGenes));
+	}
+
+	@SuppressWarnings("unchecked")
+	private <VirusT extends Virus<VirusT>> void prepareDrugResistance(
+		Virus<?> virusIns, String algName, Collection<String> includeGenes, Executor executor
+	) {
+		memoizeAsync(
+			Arrays.asList(Stage.DRUG_RESISTANCE, algName, includeGenes),
+			() -> computeDrugResistance((VirusT) virusIns, algName, includeGenes),
+			executor);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void prepareStage(Stage stage, Executor executor) {
+		switch (stage) {
+		case PREVALENCE:
+			if (source instanceof AlignedSequence || source instanceof SequenceReads) {
+				for (Map<String, Object> args : plan.getStageArguments(stage)) {
+					Collection<String> includeGenes = (Collection<String>) args.get("includeGenes");
+					memoizeAsync(
+						Arrays.asList(Stage.PREVALENCE, includeGenes),
+						() -> computeBoundMutationPrevalences(includeGenes),
+						executor);
+				}
+			}
+			break;
+		case DRUG_RESISTANCE:
+			if ((source instanceof AlignedSequence || source instanceof SequenceReads) && plan.getVirus() != null) {
+				for (Map<String, Object> args : plan.getStageArguments(stage)) {
+					String algName = (String) args.get("algorithm");
+					Collection<String> includeGenes = (Collection<String>) args.get("includeGenes");
+					prepareDrugResistance(plan.getVirus(), algName, includeGenes, executor);
+				}
+			}
+			break;
+		case VALIDATION:
+			if (source instanceof AlignedSequence) {
+				for (Map<String, Object> args : plan.getStageArguments(stage)) {
+					Collection<String> includeGenes = (Collection<String>) args.get("includeGenes");
+					memoizeAsync(
+						Arrays.asList("getValidationResults", includeGenes),
+						() -> computeValidationResults(includeGenes),
+						executor);
+				}
+			}
+			break;
+		default: break;
+		}
+	}
+
+}
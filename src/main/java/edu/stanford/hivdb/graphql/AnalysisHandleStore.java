@@ -0,0 +1,196 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Virus;
+
+import static edu.stanford.hivdb.graphql.Exceptions.AnalysisHandleNotFoundException;
+
+/**
+ * Server-side store of ingested samples referred by opaque handles.
+ *
+ * Entries expire after env `ANALYSIS_HANDLE_TTL_SECONDS` (default 1800)
+ * without access, and the store is bounded by the estimated retained
+ * bytes of all entries (env `ANALYSIS_HANDLE_MAXIMUM_BYTES`).
+ *
+ * Sequences are stored as their inputs and {@link CachedAlignment}s, so
+ * that every query by handle gets new {@link AlignedSequence} objects
+ * and no lazy state outlives the query.
+ */
+public class AnalysisHandleStore {
+
+	private static final int ESTIMATED_OVERHEAD_BYTES = 4096;
+	private static final int ESTIMATED_BYTES_PER_POSITION = 2048;
+
+	private static final AnalysisHandleStore instance;
+
+	static {
+		String ttl = System.getenv("ANALYSIS_HANDLE_TTL_SECONDS");
+		if (ttl == null) {
+			ttl = "1800";
+		}
+		String maxBytes = System.getenv("ANALYSIS_HANDLE_MAXIMUM_BYTES");
+		if (maxBytes == null) {
+			maxBytes = "536870912";
+		}
+		instance = new AnalysisHandleStore(
+			Long.parseLong(ttl), Long.parseLong(maxBytes), Ticker.systemTicker());
+	}
+
+	public static class SequencesEntry<VirusT extends Virus<VirusT>> {
+		private final List<Sequence> sequences;
+		private final List<CachedAlignment<VirusT>> alignments;
+
+		private SequencesEntry(List<Sequence> sequences, List<CachedAlignment<VirusT>> alignments) {
+			this.sequences = Collections.unmodifiableList(new ArrayList<>(sequences));
+			this.alignments = Collections.unmodifiableList(new ArrayList<>(alignments));
+		}
+
+		public List<Sequence> getSequences() {
+			return sequences;
+		}
+
+		/**
+		 * Builds new AlignedSequences of the stored inputs; called once
+		 * per query.
+		 */
+		public List<AlignedSequence<VirusT>> getAlignedSequences() {
+			List<AlignedSequence<VirusT>> alignedSeqs = new ArrayList<>(sequences.size());
+			for (int i = 0; i < sequences.size(); i ++) {
+				alignedSeqs.add(alignments.get(i).toAlignedSequence(sequences.get(i)));
+			}
+			return alignedSeqs;
+		}
+	}
+
+	public static class SequenceReadsEntry<VirusT extends Virus<VirusT>> {
+		private final List<ParsedSequenceReads<VirusT>> parsedList;
+
+		private SequenceReadsEntry(List<ParsedSequenceReads<VirusT>> parsedList) {
+			this.parsedList = parsedList;
+		}
+
+		public List<ParsedSequenceReads<VirusT>> getParsedSequenceReads() {
+			return parsedList;
+		}
+	}
+
+	private static class Entry {
+		private final String virusName;
+		private final Object payload;
+		private final int weight;
+
+		private Entry(String virusName, Object payload, long weight) {
+			this.virusName = virusName;
+			this.payload = payload;
+			this.weight = (int) Math.min(weight, Integer.MAX_VALUE);
+		}
+	}
+
+	public static AnalysisHandleStore getInstance() {
+		return instance;
+	}
+
+	private final Cache<String, Entry> store;
+
+	protected AnalysisHandleStore(long ttlSeconds, long maximumBytes, Ticker ticker) {
+		store = CacheBuilder.newBuilder()
+			.expireAfterAccess(ttlSeconds, TimeUnit.SECONDS)
+			.maximumWeight(maximumBytes)
+			.weigher((String handle, Entry entry) -> entry.weight)
+			.ticker(ticker)
+			.build();
+	}
+
+	private String put(Virus<?> virusIns, Object payload, long weight) {
+		String handle = UUID.randomUUID().toString();
+		store.put(handle, new Entry(virusIns.getName(), payload, weight));
+		return handle;
+	}
+
+	private Object get(Virus<?> virusIns, String handle, Class<?> payloadClass) {
+		Entry entry = handle == null ? null : store.getIfPresent(handle);
+		if (
+			entry == null ||
+			!entry.virusName.equals(virusIns.getName()) ||
+			!payloadClass.isInstance(entry.payload)
+		) {
+			throw new AnalysisHandleNotFoundException(String.format(
+				"Analysis handle %s doesn't exist or has expired.", handle));
+		}
+		return entry.payload;
+	}
+
+	public <VirusT extends Virus<VirusT>> String putSequences(
+		VirusT virusIns, List<Sequence> sequences, List<AlignedSequence<VirusT>> alignedSequences
+	) {
+		long weight = ESTIMATED_OVERHEAD_BYTES;
+		List<CachedAlignment<VirusT>> alignments = new ArrayList<>(alignedSequences.size());
+		for (AlignedSequence<VirusT> alignedSeq : alignedSequences) {
+			CachedAlignment<VirusT> alignment = CachedAlignment.of(alignedSeq);
+			weight += alignment.estimateRetainedBytes();
+			alignments.add(alignment);
+		}
+		for (Sequence seq : sequences) {
+			weight += seq.getLength();
+		}
+		return put(virusIns, new SequencesEntry<>(sequences, alignments), weight);
+	}
+
+	public <VirusT extends Virus<VirusT>> String putSequenceReads(
+		VirusT virusIns, List<ParsedSequenceReads<VirusT>> parsedList
+	) {
+		long weight = ESTIMATED_OVERHEAD_BYTES;
+		for (ParsedSequenceReads<VirusT> parsed : parsedList) {
+			weight += (long) parsed.getAllReads().size() * ESTIMATED_BYTES_PER_POSITION;
+		}
+		return put(virusIns, new SequenceReadsEntry<>(parsedList), weight);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <VirusT extends Virus<VirusT>> SequencesEntry<VirusT> getSequences(VirusT virusIns, String handle) {
+		return (SequencesEntry<VirusT>) get(virusIns, handle, SequencesEntry.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <VirusT extends Virus<VirusT>> SequenceReadsEntry<VirusT> getSequenceReads(VirusT virusIns, String handle) {
+		return (SequenceReadsEntry<VirusT>) get(virusIns, handle, SequenceReadsEntry.class);
+	}
+
+	public boolean release(String handle) {
+		if (handle == null || store.getIfPresent(handle) == null) {
+			return false;
+		}
+		store.invalidate(handle);
+		return true;
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.stanford.hivdb.viruses.Virus;
+import graphql.schema.DataFetchingFieldSelectionSet;
+import graphql.schema.SelectedField;
+
+/**
+ * Prefetcher of the expensive analysis stages required by the fields
+ * selected under a `sequenceAnalysis` or `sequenceReadsAnalysis` root
+ * field.
+ *
+ * The plan doesn't skip any work: fields which are not selected are never
+ * resolved anyway. It only starts the selected mutation prevalence, drug
+ * resistance and validation stages of each item ahead of the fields which
+ * need them, once per distinct arguments of those fields, so that they
+ * run concurrently. Values which sierra-core already computes lazily and
+ * keeps (genotypes, pretty pairwise, assembled consensus) are not staged.
+ *
+ * The stages of each item are computed on a shared stage pool (env
+ * `ANALYSIS_STAGE_POOL_SIZE`, default the number of processors) with a
+ * bounded queue (env `ANALYSIS_STAGE_QUEUE_SIZE`, default 1024). The
+ * same pool runs the per-item continuations of alignments, so that no
+ * analysis runs on the workers of {@link AlignmentScheduler}. When the
+ * queue is full, a request or stage thread runs the task itself, while a
+ * fork-join worker waits for space in the queue. Stages still queued when
+ * the request deadline passes are skipped.
+ */
+public class AnalysisPlan {
+
+	public static enum Stage {
+		PREVALENCE("mutationPrevalences"),
+		DRUG_RESISTANCE("drugResistance"),
+		VALIDATION("validationResults");
+
+		private final List<String> fieldGlobs;
+
+		private Stage(String... fieldGlobs) {
+			this.fieldGlobs = List.of(fieldGlobs);
+		}
+	}
+
+	public static final AnalysisPlan NO_STAGES = new AnalysisPlan(
+		EnumSet.noneOf(Stage.class), null, Collections.emptyMap(), RequestDeadline.NONE);
+
+	private static final ExecutorService stagePool;
+
+	static {
+		String poolSize = System.getenv("ANALYSIS_STAGE_POOL_SIZE");
+		if (poolSize == null) {
+			poolSize = String.valueOf(Runtime.getRuntime().availableProcessors());
+		}
+		String queueSize = System.getenv("ANALYSIS_STAGE_QUEUE_SIZE");
+		if (queueSize == null) {
+			queueSize = "1024";
+		}
+		int numThreads = Integer.parseInt(poolSize);
+		stagePool = new ThreadPoolExecutor(
+			numThreads, numThreads, 60L, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(Integer.parseInt(queueSize)),
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("analysis-stage-%d").build(),
+			new StageRejectionPolicy());
+	}
+
+	private static class StageRejectionPolicy implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Analysis stage pool is shut down");
+			}
+			if (!(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+				task.run();
+				return;
+			}
+			try {
+				executor.getQueue().put(task);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the executor of analysis stages and of the continuations
+	 * which start the analysis of an item.
+	 */
+	public static Executor getStageExecutor() {
+		return stagePool;
+	}
+
+	private final Set<Stage> stages;
+	private final Virus<?> virusIns;
+	private final Map<Stage, List<Map<String, Object>>> stageArguments;
+	private final RequestDeadline deadline;
+
+	private AnalysisPlan(
+		Set<Stage> stages, Virus<?> virusIns,
+		Map<Stage, List<Map<String, Object>>> stageArguments, RequestDeadline deadline
+	) {
+		this.stages = Collections.unmodifiableSet(stages);
+		this.virusIns = virusIns;
+		this.stageArguments = stageArguments;
+		this.deadline = deadline;
+	}
+
+	public static AnalysisPlan fromSelectionSet(DataFetchingFieldSelectionSet selectionSet) {
+		return fromSelectionSet(null, selectionSet);
+	}
+
+	/**
+	 * @param virusIns required by the drug resistance stage; the stage is
+	 * not planned if null
+	 */
+	public static AnalysisPlan fromSelectionSet(Virus<?> virusIns, DataFetchingFieldSelectionSet selectionSet) {
+		if (selectionSet == null) {
+			return NO_STAGES;
+		}
+		Set<Stage> stages = EnumSet.noneOf(Stage.class);
+		Map<Stage, List<Map<String, Object>>> stageArguments = new EnumMap<>(Stage.class);
+		for (Stage stage : Stage.values()) {
+			if (stage == Stage.DRUG_RESISTANCE && virusIns == null) {
+				continue;
+			}
+			for (String glob : stage.fieldGlobs) {
+				if (!selectionSet.contains(glob)) {
+					continue;
+				}
+				stages.add(stage);
+				List<Map<String, Object>> argsList = new ArrayList<>();
+				for (SelectedField field : selectionSet.getFields(glob)) {
+					if (!argsList.contains(field.getArguments())) {
+						argsList.add(field.getArguments());
+					}
+				}
+				stageArguments.put(stage, argsList);
+				break;
+			}
+		}
+		return new AnalysisPlan(stages, virusIns, stageArguments, RequestDeadline.NONE);
+	}
+
+	public AnalysisPlan withDeadline(RequestDeadline deadline) {
+		return new AnalysisPlan(stages, virusIns, stageArguments, deadline);
+	}
+
+	public boolean needs(Stage stage) {
+		return stages.contains(stage);
+	}
+
+	public Set<Stage> getStages() {
+		return stages;
+	}
+
+	public Virus<?> getVirus() {
+		return virusIns;
+	}
+
+	public RequestDeadline getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Returns the distinct arguments of the fields selected for the stage.
+	 */
+	public List<Map<String, Object>> getStageArguments(Stage stage) {
+		return stageArguments.getOrDefault(stage, Collections.emptyList());
+	}
+
+	/**
+	 * Submits the planned stages of given source to the stage pool without
+	 * waiting for them. Field resolution picks up the in-flight results.
+	 */
+	public void prepare(AnalysisContext ctx) {
+		if (deadline.isExpired()) {
+			return;
+		}
+		Executor executor = stagePool;
+		if (deadline != RequestDeadline.NONE) {
+			executor = task -> stagePool.execute(() -> {
+				if (!deadline.isExpired()) {
+					task.run();
+				}
+			});
+		}
+		for (Stage stage : stages) {
+			ctx.prepareStage(stage, executor);
+		}
+	}
+
+	public void prepare(Collection<AnalysisContext> contexts) {
+		for (AnalysisContext ctx : contexts) {
+			prepare(ctx);
+		}
+	}
+
+}
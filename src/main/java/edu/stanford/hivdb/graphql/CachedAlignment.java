@@ -0,0 +1,209 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.mutations.FrameShift;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.AlignedSite;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Strain;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * The alignment of a nucleotide sequence, without the input header or
+ * any per-request state.
+ *
+ * {@link AlignedSequence} and {@link AlignedGeneSeq} carry the input
+ * header and lazily compute (and keep) derived strings, mutation sets,
+ * genotype and validation results, so they must not be shared between
+ * requests. This class keeps only the immutable output of the aligner:
+ * the aligned nucleotides, and per gene the aligned range, sites,
+ * mutations and frame shifts. {@link #toAlignedSequence(Sequence)} builds
+ * new AlignedSequence and AlignedGeneSeq objects around each caller's own
+ * input.
+ */
+public class CachedAlignment<VirusT extends Virus<VirusT>> {
+
+	// Retained bytes are estimated from the parts which grow with the
+	// input: the aligned nucleotides (a compact Latin-1 string), and the
+	// sites, mutations and frame shifts of each gene.
+	private static final int ESTIMATED_OVERHEAD_BYTES = 1024;
+	private static final int ESTIMATED_BYTES_PER_GENE = 256;
+	private static final int ESTIMATED_BYTES_PER_SITE = 32;
+	private static final int ESTIMATED_BYTES_PER_MUTATION = 256;
+	private static final int ESTIMATED_BYTES_PER_FRAME_SHIFT = 128;
+
+	/**
+	 * The alignment of one gene, as the aligner produced it.
+	 */
+	public static class GeneAlignment<VirusT extends Virus<VirusT>> {
+		private final Gene<VirusT> gene;
+		private final int firstAA;
+		private final int lastAA;
+		private final int firstNA;
+		private final int lastNA;
+		private final int leftTrimmed;
+		private final int rightTrimmed;
+		private final List<AlignedSite> alignedSites;
+		private final List<Mutation<VirusT>> mutations;
+		private final List<FrameShift<VirusT>> frameShifts;
+
+		public static <VirusT extends Virus<VirusT>> GeneAlignment<VirusT> of(AlignedGeneSeq<VirusT> geneSeq) {
+			return new GeneAlignment<>(
+				geneSeq.getGene(),
+				geneSeq.getFirstAA(), geneSeq.getLastAA(),
+				geneSeq.getFirstNA(), geneSeq.getLastNA(),
+				geneSeq.getLeftTrimmed(), geneSeq.getRightTrimmed(),
+				geneSeq.getAlignedSites(),
+				geneSeq.getMutations(),
+				geneSeq.getFrameShifts());
+		}
+
+		public GeneAlignment(
+			Gene<VirusT> gene, int firstAA, int lastAA, int firstNA, int lastNA,
+			int leftTrimmed, int rightTrimmed, List<AlignedSite> alignedSites,
+			Collection<Mutation<VirusT>> mutations, List<FrameShift<VirusT>> frameShifts
+		) {
+			this.gene = gene;
+			this.firstAA = firstAA;
+			this.lastAA = lastAA;
+			this.firstNA = firstNA;
+			this.lastNA = lastNA;
+			this.leftTrimmed = leftTrimmed;
+			this.rightTrimmed = rightTrimmed;
+			this.alignedSites = Collections.unmodifiableList(new ArrayList<>(alignedSites));
+			this.mutations = Collections.unmodifiableList(new ArrayList<>(mutations));
+			this.frameShifts = Collections.unmodifiableList(new ArrayList<>(frameShifts));
+		}
+
+		public Gene<VirusT> getGene() { return gene; }
+		public int getFirstAA() { return firstAA; }
+		public int getLastAA() { return lastAA; }
+		public int getFirstNA() { return firstNA; }
+		public int getLastNA() { return lastNA; }
+		public int getLeftTrimmed() { return leftTrimmed; }
+		public int getRightTrimmed() { return rightTrimmed; }
+		public List<AlignedSite> getAlignedSites() { return alignedSites; }
+		public List<Mutation<VirusT>> getMutations() { return mutations; }
+		public List<FrameShift<VirusT>> getFrameShifts() { return frameShifts; }
+
+		/**
+		 * Builds a new AlignedGeneSeq of this gene on the given sequence.
+		 */
+		public AlignedGeneSeq<VirusT> toAlignedGeneSeq(Sequence sequence, boolean reversed) {
+			return new AlignedGeneSeq<>(
+				sequence, gene, firstAA, lastAA, firstNA, lastNA,
+				alignedSites, mutations, frameShifts,
+				leftTrimmed, rightTrimmed, reversed);
+		}
+
+		private long estimateRetainedBytes() {
+			return (
+				ESTIMATED_BYTES_PER_GENE +
+				(long) alignedSites.size() * ESTIMATED_BYTES_PER_SITE +
+				(long) mutations.size() * ESTIMATED_BYTES_PER_MUTATION +
+				(long) frameShifts.size() * ESTIMATED_BYTES_PER_FRAME_SHIFT
+			);
+		}
+	}
+
+	private final Strain<VirusT> strain;
+	private final String alignedNAs;
+	private final List<GeneAlignment<VirusT>> geneAlignments;
+	private final Map<Gene<VirusT>, String> discardedGenes;
+	private final boolean reversed;
+	private final int retainedBytes;
+
+	public static <VirusT extends Virus<VirusT>> CachedAlignment<VirusT> of(AlignedSequence<VirusT> alignedSeq) {
+		List<GeneAlignment<VirusT>> geneAlignments = new ArrayList<>();
+		for (AlignedGeneSeq<VirusT> geneSeq : alignedSeq.getAlignedGeneSequenceMap().values()) {
+			geneAlignments.add(GeneAlignment.of(geneSeq));
+		}
+		return new CachedAlignment<>(
+			alignedSeq.getStrain(),
+			alignedSeq.getInputSequence().getSequence(),
+			geneAlignments,
+			alignedSeq.getDiscardedGenes(),
+			alignedSeq.isReverseComplement());
+	}
+
+	public CachedAlignment(
+		Strain<VirusT> strain, String alignedNAs,
+		List<GeneAlignment<VirusT>> geneAlignments,
+		Map<Gene<VirusT>, String> discardedGenes, boolean reversed
+	) {
+		this.strain = strain;
+		this.alignedNAs = alignedNAs;
+		this.geneAlignments = Collections.unmodifiableList(new ArrayList<>(geneAlignments));
+		this.discardedGenes = Collections.unmodifiableMap(new LinkedHashMap<>(discardedGenes));
+		this.reversed = reversed;
+
+		// everything held is immutable, so the weight never changes
+		long size = ESTIMATED_OVERHEAD_BYTES + alignedNAs.length();
+		for (GeneAlignment<VirusT> geneAlignment : geneAlignments) {
+			size += geneAlignment.estimateRetainedBytes();
+		}
+		this.retainedBytes = (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	public Strain<VirusT> getStrain() { return strain; }
+
+	/**
+	 * Returns the nucleotides which were aligned; the reverse complement
+	 * of the input if {@link #isReverseComplement()}.
+	 */
+	public String getAlignedNAs() { return alignedNAs; }
+
+	public List<GeneAlignment<VirusT>> getGeneAlignments() { return geneAlignments; }
+
+	public Map<Gene<VirusT>, String> getDiscardedGenes() { return discardedGenes; }
+
+	public boolean isReverseComplement() { return reversed; }
+
+	/**
+	 * Builds a new AlignedSequence, with new AlignedGeneSeqs, of this
+	 * alignment for the given input, which has the same normalized
+	 * nucleotides as the aligned input. This is where the input header is
+	 * attached; the cached alignment doesn't keep one.
+	 */
+	public AlignedSequence<VirusT> toAlignedSequence(Sequence input) {
+		Sequence sequence = new Sequence(input.getHeader(), alignedNAs);
+		Map<Gene<VirusT>, AlignedGeneSeq<VirusT>> geneSeqs = new LinkedHashMap<>();
+		for (GeneAlignment<VirusT> geneAlignment : geneAlignments) {
+			geneSeqs.put(geneAlignment.getGene(), geneAlignment.toAlignedGeneSeq(sequence, reversed));
+		}
+		return new AlignedSequence<>(strain, sequence, geneSeqs, discardedGenes, reversed);
+	}
+
+	public int estimateRetainedBytes() {
+		return retainedBytes;
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package edu.stanford.hivdb.graphql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.mutations.CodonMutation;
+import edu.stanford.hivdb.mutations.FrameShift;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.graphql.CachedAlignment.GeneAlignment;
+import edu.stanford.hivdb.sequences.AlignedSite;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Strain;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Binary form of a {@link CachedAlignment} used by the on-disk tier.
+ *
+ * Only the aligned nucleotides and the alignment coordinates are written:
+ * per gene the aligned range, the aligned sites, the codon mutations and
+ * the frame shifts. Strains and genes are written by name and resolved
+ * against the virus instance on load, so that the rebuilt alignment refers
+ * to the same singletons as a fresh one. Like the in-memory cache, the
+ * encoding has no input header; it is attached to the alignment only by
+ * {@link CachedAlignment#toAlignedSequence}.
+ */
+public class CachedAlignmentCodec {
+
+	private static final int FORMAT_VERSION = 1;
+
+	public static byte[] encode(CachedAlignment<?> alignment) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			writeAlignment(out, alignment);
+		}
+		catch (IOException e) {
+			// writing to memory
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static <VirusT extends Virus<VirusT>> void writeAlignment(
+		DataOutputStream out, CachedAlignment<VirusT> alignment
+	) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		writeString(out, alignment.getStrain().getName());
+		writeString(out, alignment.getAlignedNAs());
+		out.writeBoolean(alignment.isReverseComplement());
+
+		List<GeneAlignment<VirusT>> geneAlignments = alignment.getGeneAlignments();
+		out.writeInt(geneAlignments.size());
+		for (GeneAlignment<VirusT> geneSeq : geneAlignments) {
+			writeString(out, geneSeq.getGene().getName());
+			out.writeInt(geneSeq.getFirstAA());
+			out.writeInt(geneSeq.getLastAA());
+			out.writeInt(geneSeq.getFirstNA());
+			out.writeInt(geneSeq.getLastNA());
+			out.writeInt(geneSeq.getLeftTrimmed());
+			out.writeInt(geneSeq.getRightTrimmed());
+
+			List<AlignedSite> sites = geneSeq.getAlignedSites();
+			out.writeInt(sites.size());
+			for (AlignedSite site : sites) {
+				out.writeInt(site.getPosAA());
+				out.writeInt(site.getPosNA());
+				out.writeInt(site.getLengthNA());
+			}
+
+			out.writeInt(geneSeq.getMutations().size());
+			for (Mutation<VirusT> mut : geneSeq.getMutations()) {
+				out.writeInt(mut.getPosition());
+				writeString(out, mut.getAAs());
+				writeString(out, mut.getTriplet());
+				writeString(out, mut.getInsertedNAs());
+			}
+
+			List<FrameShift<VirusT>> frameShifts = geneSeq.getFrameShifts();
+			out.writeInt(frameShifts.size());
+			for (FrameShift<VirusT> fs : frameShifts) {
+				out.writeInt(fs.getPosition());
+				out.writeBoolean(fs.isInsertion());
+				out.writeInt(fs.getSize());
+				writeString(out, fs.getNAs());
+			}
+		}
+
+		Map<Gene<VirusT>, String> discardedGenes = alignment.getDiscardedGenes();
+		out.writeInt(discardedGenes.size());
+		for (Map.Entry<Gene<VirusT>, String> e : discardedGenes.entrySet()) {
+			writeString(out, e.getKey().getName());
+			writeString(out, e.getValue());
+		}
+	}
+
+	/**
+	 * Rebuilds the alignment written by {@link #encode(CachedAlignment)}.
+	 *
+	 * @throws IOException if the data is truncated, was written by another
+	 * format version or refers to unknown strains or genes
+	 */
+	public static <VirusT extends Virus<VirusT>> CachedAlignment<VirusT> decode(
+		VirusT virusIns, byte[] data
+	) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+			int version = in.readInt();
+			if (version != FORMAT_VERSION) {
+				throw new IOException("Unsupported alignment format version " + version);
+			}
+			Strain<VirusT> strain = virusIns.getStrain(readString(in));
+			if (strain == null) {
+				throw new IOException("Unknown strain");
+			}
+			String alignedNAs = readString(in);
+			boolean reversed = in.readBoolean();
+
+			int numGenes = readCount(in);
+			List<GeneAlignment<VirusT>> geneAlignments = new ArrayList<>(numGenes);
+			for (int i = 0; i < numGenes; i ++) {
+				Gene<VirusT> gene = readGene(in, virusIns);
+				int firstAA = in.readInt();
+				int lastAA = in.readInt();
+				int firstNA = in.readInt();
+				int lastNA = in.readInt();
+				int leftTrimmed = in.readInt();
+				int rightTrimmed = in.readInt();
+
+				int numSites = readCount(in);
+				List<AlignedSite> sites = new ArrayList<>(numSites);
+				for (int j = 0; j < numSites; j ++) {
+					sites.add(new AlignedSite(in.readInt(), in.readInt(), in.readInt()));
+				}
+
+				int numMutations = readCount(in);
+				List<Mutation<VirusT>> mutations = new ArrayList<>(numMutations);
+				for (int j = 0; j < numMutations; j ++) {
+					int pos = in.readInt();
+					String aas = readString(in);
+					String triplet = readString(in);
+					String insertedNAs = readString(in);
+					mutations.add(new CodonMutation<>(gene, pos, aas, triplet, insertedNAs));
+				}
+
+				int numFrameShifts = readCount(in);
+				List<FrameShift<VirusT>> frameShifts = new ArrayList<>(numFrameShifts);
+				for (int j = 0; j < numFrameShifts; j ++) {
+					int pos = in.readInt();
+					boolean isInsertion = in.readBoolean();
+					int size = in.readInt();
+					String nas = readString(in);
+					frameShifts.add(
+						isInsertion ?
+						FrameShift.newInsertion(gene, pos, size, nas) :
+						FrameShift.newDeletion(gene, pos, size));
+				}
+
+				geneAlignments.add(new GeneAlignment<>(
+					gene, firstAA, lastAA, firstNA, lastNA,
+					leftTrimmed, rightTrimmed, sites, mutations, frameShifts));
+			}
+
+			int numDiscarded = readCount(in);
+			Map<Gene<VirusT>, String> discardedGenes = new LinkedHashMap<>();
+			for (int i = 0; i < numDiscarded; i ++) {
+				Gene<VirusT> gene = readGene(in, virusIns);
+				discardedGenes.put(gene, readString(in));
+			}
+			return new CachedAlignment<>(strain, alignedNAs, geneAlignments, discardedGenes, reversed);
+		}
+	}
+
+	private static <VirusT extends Virus<VirusT>> Gene<VirusT> readGene(
+		DataInputStream in, VirusT virusIns
+	) throws IOException {
+		Gene<VirusT> gene = virusIns.getGene(readString(in));
+		if (gene == null) {
+			throw new IOException("Unknown gene");
+		}
+		return gene;
+	}
+
+	// every counted item takes at least one byte
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > in.available()) {
+			throw new IOException("Truncated alignment data");
+		}
+		return count;
+	}
+
+	// strings are written as a length-prefixed UTF-8; -1 for null
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) {
+			return null;
+		}
+		if (size > in.available()) {
+			throw new IOException("Truncated alignment data");
+		}
+		byte[] bytes = new byte[size];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
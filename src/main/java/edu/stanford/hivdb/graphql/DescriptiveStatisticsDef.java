@@ -24,15 +24,116 @@ import static graphql.schema.GraphQLObjectType.newObject;
 import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 public class DescriptiveStatisticsDef {
 
+	private static final int PERCENTILE_SKETCH_THRESHOLD;
+	private static final int PERCENTILE_SKETCH_SIZE = 2049;
+
+	static {
+		String threshold = System.getenv("PERCENTILE_SKETCH_THRESHOLD");
+		if (threshold == null) {
+			threshold = "0";
+		}
+		PERCENTILE_SKETCH_THRESHOLD = Integer.parseInt(threshold);
+	}
+
+	/**
+	 * Sorted values of a {@link DescriptiveStatistics}, or evenly spaced
+	 * quantiles of them if the values exceed the sketch threshold.
+	 */
+	private static class PercentileSnapshot {
+		private final long n;
+		private final double[] points;
+
+		private PercentileSnapshot(DescriptiveStatistics descStats) {
+			double[] sorted = Arrays.stream(descStats.getValues())
+				.filter(v -> !Double.isNaN(v))
+				.sorted()
+				.toArray();
+			n = sorted.length;
+			if (PERCENTILE_SKETCH_THRESHOLD > 0 && n > PERCENTILE_SKETCH_THRESHOLD) {
+				points = new double[PERCENTILE_SKETCH_SIZE];
+				for (int i = 0; i < PERCENTILE_SKETCH_SIZE; i ++) {
+					points[i] = sorted[(int) Math.round((double) i * (n - 1) / (PERCENTILE_SKETCH_SIZE - 1))];
+				}
+			}
+			else {
+				points = sorted;
+			}
+		}
+
+		private double valueAtRank(double rank) {
+			// rank is zero-based and may be fractional
+			if (points.length != n) {
+				rank = rank * (points.length - 1) / (n - 1);
+			}
+			int lower = (int) Math.floor(rank);
+			if (lower >= points.length - 1) {
+				return points[points.length - 1];
+			}
+			double dif = rank - lower;
+			return points[lower] + dif * (points[lower + 1] - points[lower]);
+		}
+
+		/**
+		 * Same estimation as the default (legacy) commons-math Percentile.
+		 */
+		private double getPercentile(double p) {
+			if (n == 0) {
+				return Double.NaN;
+			}
+			if (n == 1) {
+				return points[0];
+			}
+			double pos = p * (n + 1) / 100;
+			if (pos < 1) {
+				return points[0];
+			}
+			if (pos >= n) {
+				return points[points.length - 1];
+			}
+			return valueAtRank(pos - 1);
+		}
+	}
+
+	private static final Cache<DescriptiveStatistics, PercentileSnapshot> percentileSnapshots = (
+		CacheBuilder.newBuilder().weakKeys().build());
+
+	private static PercentileSnapshot getPercentileSnapshot(DescriptiveStatistics descStats) {
+		try {
+			PercentileSnapshot snapshot = percentileSnapshots.get(
+				descStats, () -> new PercentileSnapshot(descStats));
+			if (snapshot.n != descStats.getN()) {
+				// values were added after the snapshot was taken
+				snapshot = new PercentileSnapshot(descStats);
+				percentileSnapshots.put(descStats, snapshot);
+			}
+			return snapshot;
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
 
 	private static DataFetcher<Double> percentileDataFetcher = env -> {
 		DescriptiveStatistics descStats = env.getSource();
 		double p = env.getArgument("p");
-		Double result = descStats.getPercentile(p);
+		Double result;
+		if (p > 0 && p <= 100 && !Double.isNaN(descStats.getMean())) {
+			result = getPercentileSnapshot(descStats).getPercentile(p);
+		}
+		else {
+			// let commons-math handle invalid arguments and NaN values
+			result = descStats.getPercentile(p);
+		}
 		if (Double.isNaN(result)) {
 			return null;
 		}
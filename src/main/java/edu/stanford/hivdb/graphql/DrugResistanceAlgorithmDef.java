@@ -75,10 +75,8 @@ public class DrugResistanceAlgorithmDef {
 		.build();
 
 	public static <VirusT extends Virus<VirusT>> DataFetcher<DrugResistanceAlgorithm<VirusT>> makeCurrentHIVDBVersionFetcher(VirusT virusIns) {
-		return env -> {
-			DrugResistanceAlgorithm<VirusT> latestAlg = virusIns.getDefaultDrugResistAlgorithm();
-			return latestAlg;
-		};
+		DrugResistanceAlgorithm<VirusT> latestAlg = ReferenceDataSnapshot.of(virusIns).getCurrentAlgorithm();
+		return env -> latestAlg;
 	};
 
 }
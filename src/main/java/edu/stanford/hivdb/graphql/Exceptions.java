@@ -30,6 +30,14 @@ public class Exceptions {
 	    }
 	}
 
+	protected static class AnalysisHandleNotFoundException extends GraphQLException {
+		private static final long serialVersionUID = 6316945307283360132L;
+
+		protected AnalysisHandleNotFoundException(String message) {
+	        super(message);
+	    }
+	}
+
 	protected static class SequenceSizeLimitExceededException extends GraphQLException {
 		private static final long serialVersionUID = -4610799539466655566L;
 
@@ -38,4 +46,12 @@ public class Exceptions {
 	    }
 	}
 
+	protected static class RequestTimeoutException extends GraphQLException {
+		private static final long serialVersionUID = 5093781646212407316L;
+
+		protected RequestTimeoutException(String message) {
+	        super(message);
+	    }
+	}
+
 }
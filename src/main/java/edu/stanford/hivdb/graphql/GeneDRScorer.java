@@ -0,0 +1,193 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+import edu.stanford.hivdb.drugresistance.GeneDR;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.seqreads.GeneSequenceReads;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Per-gene fork/join scoring of drug resistance for one sequence or sample.
+ *
+ * Genes of at least env `GENE_DR_PARALLEL_MINIMUM_SIZE` (default 200)
+ * positions are scored in their own tasks; smaller genes are scored
+ * together in one task. The tasks run in a dedicated pool (env
+ * `GENE_DR_PARALLELISM`, default the number of processors), so that
+ * scoring doesn't compete with other users of the common pool, and the
+ * calling thread waits for them. The request deadline is checked
+ * before any task is forked, and again by each forked task when it
+ * starts, so that genes not yet started are abandoned once it has passed.
+ * The task of the smaller genes doesn't check it again, since failing
+ * then would only abandon the results of running tasks.
+ */
+public class GeneDRScorer {
+
+	private static final int MINIMUM_PARALLEL_SIZE;
+	private static final ForkJoinPool pool;
+
+	static {
+		String minSize = System.getenv("GENE_DR_PARALLEL_MINIMUM_SIZE");
+		if (minSize == null) {
+			minSize = "200";
+		}
+		MINIMUM_PARALLEL_SIZE = Integer.parseInt(minSize);
+
+		String parallelism = System.getenv("GENE_DR_PARALLELISM");
+		if (parallelism == null) {
+			parallelism = String.valueOf(Runtime.getRuntime().availableProcessors());
+		}
+		pool = new ForkJoinPool(Integer.parseInt(parallelism));
+	}
+
+	private static class ScoringTask<VirusT extends Virus<VirusT>, T, R> extends RecursiveTask<Map<Gene<VirusT>, R>> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<T> items;
+		private final Function<List<T>, Map<Gene<VirusT>, R>> scorer;
+		private final Consumer<List<T>> beforeStart;
+
+		private ScoringTask(
+			List<T> items,
+			Function<List<T>, Map<Gene<VirusT>, R>> scorer,
+			Consumer<List<T>> beforeStart
+		) {
+			this.items = items;
+			this.scorer = scorer;
+			this.beforeStart = beforeStart;
+		}
+
+		@Override
+		protected Map<Gene<VirusT>, R> compute() {
+			beforeStart.accept(items);
+			return scorer.apply(items);
+		}
+	}
+
+	/**
+	 * @param geneItems per-gene inputs, e.g. aligned gene sequences
+	 * @param getGene returns the gene of an input
+	 * @param getSize returns the number of positions of an input
+	 * @param scorer scores a list of inputs, e.g. GeneDR::newFromAlignedGeneSeqs
+	 * @param deadline deadline of the request
+	 * @return results in the order of the inputs
+	 */
+	public static <VirusT extends Virus<VirusT>, T> List<GeneDR<VirusT>> score(
+		List<T> geneItems,
+		Function<T, Gene<VirusT>> getGene,
+		ToIntFunction<T> getSize,
+		Function<List<T>, Map<Gene<VirusT>, GeneDR<VirusT>>> scorer,
+		RequestDeadline deadline
+	) {
+		return score(geneItems, getGene, getSize, scorer, deadline, pool);
+	}
+
+	/**
+	 * Same as {@link #score(List, Function, ToIntFunction, Function, RequestDeadline)},
+	 * with any result type and given pool.
+	 */
+	protected static <VirusT extends Virus<VirusT>, T, R> List<R> score(
+		List<T> geneItems,
+		Function<T, Gene<VirusT>> getGene,
+		ToIntFunction<T> getSize,
+		Function<List<T>, Map<Gene<VirusT>, R>> scorer,
+		RequestDeadline deadline,
+		ForkJoinPool pool
+	) {
+		deadline.check(describe(geneItems, getGene));
+		List<T> inlineItems = new ArrayList<>();
+		List<ScoringTask<VirusT, T, R>> tasks = new ArrayList<>();
+		if (geneItems.size() > 1) {
+			for (T item : geneItems) {
+				if (getSize.applyAsInt(item) >= MINIMUM_PARALLEL_SIZE) {
+					tasks.add(new ScoringTask<>(
+						List.of(item), scorer, items -> deadline.check(describe(items, getGene))));
+				}
+				else {
+					inlineItems.add(item);
+				}
+			}
+		}
+		if (tasks.isEmpty()) {
+			return new ArrayList<>(scorer.apply(geneItems).values());
+		}
+		if (!inlineItems.isEmpty()) {
+			tasks.add(new ScoringTask<>(inlineItems, scorer, items -> {}));
+		}
+
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+		Map<Gene<VirusT>, R> scored = new LinkedHashMap<>();
+		for (ScoringTask<VirusT, T, R> task : tasks) {
+			scored.putAll(task.join());
+		}
+		List<R> results = new ArrayList<>();
+		for (T item : geneItems) {
+			R result = scored.get(getGene.apply(item));
+			if (result != null) {
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
+	private static <VirusT extends Virus<VirusT>, T> String describe(List<T> geneItems, Function<T, Gene<VirusT>> getGene) {
+		return "gene " + geneItems.stream()
+			.map(item -> getGene.apply(item).getAbstractGene())
+			.collect(Collectors.joining(", "));
+	}
+
+	public static <VirusT extends Virus<VirusT>> List<GeneDR<VirusT>> scoreAlignedGeneSeqs(
+		List<AlignedGeneSeq<VirusT>> geneSeqs, DrugResistanceAlgorithm<VirusT> algorithm, RequestDeadline deadline
+	) {
+		return score(
+			geneSeqs,
+			AlignedGeneSeq::getGene,
+			geneSeq -> geneSeq.getLastAA() - geneSeq.getFirstAA() + 1,
+			items -> GeneDR.newFromAlignedGeneSeqs(items, algorithm),
+			deadline
+		);
+	}
+
+	public static <VirusT extends Virus<VirusT>> List<GeneDR<VirusT>> scoreGeneSequenceReads(
+		List<GeneSequenceReads<VirusT>> allGeneSeqReads, DrugResistanceAlgorithm<VirusT> algorithm, RequestDeadline deadline
+	) {
+		return score(
+			allGeneSeqReads,
+			GeneSequenceReads::getGene,
+			geneSeqReads -> geneSeqReads.getAllPositionCodonReads().size(),
+			items -> GeneDR.newFromGeneSequenceReads(items, algorithm),
+			deadline
+		);
+	}
+
+}
@@ -24,8 +24,10 @@ import static graphql.schema.GraphQLObjectType.newObject;
 import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
+import java.util.List;
 import java.util.stream.Collectors;
 
+import edu.stanford.hivdb.mutations.PositionCodonReads;
 import edu.stanford.hivdb.seqreads.GeneSequenceReads;
 import edu.stanford.hivdb.utilities.Json;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
@@ -40,6 +42,7 @@ import static edu.stanford.hivdb.graphql.SequenceReadsHistogramDef.*;
 import static edu.stanford.hivdb.graphql.GeneDef.*;
 import static edu.stanford.hivdb.graphql.UnsequencedRegionsDef.*;
 import static edu.stanford.hivdb.graphql.DescriptiveStatisticsDef.*;
+import static edu.stanford.hivdb.graphql.PositionRangeDef.*;
 
 public class GeneSequenceReadsDef {
 
@@ -57,6 +60,19 @@ public class GeneSequenceReadsDef {
 			.collect(Collectors.toList()));
 	};
 
+	private static <VirusT extends Virus<VirusT>> DataFetcher<List<PositionCodonReads<VirusT>>> makeAllPositionCodonReadsDataFetcher(VirusT virusIns) {
+		return env -> {
+			GeneSequenceReads<VirusT> geneSeqReads = env.getSource();
+			if (!hasPositionRange(env)) {
+				return geneSeqReads.getAllPositionCodonReads();
+			}
+			PositionIndex<PositionCodonReads<VirusT>> index = SourceMemoizer.memoize(
+				geneSeqReads, "allPositionCodonReadsIndex",
+				() -> new PositionIndex<>(geneSeqReads.getAllPositionCodonReads(), pcr -> pcr.getPosition()));
+			return index.slice(getFromPosition(env), getToPosition(env));
+		};
+	}
+
 	public static <VirusT extends Virus<VirusT>> GraphQLCodeRegistry makeGeneSequenceReadsCodeRegistry(VirusT virusIns) {
 		return (
 			newCodeRegistry()
@@ -64,6 +80,10 @@ public class GeneSequenceReadsDef {
 				coordinates("GeneSequenceReads", "internalJsonAllPositionCodonReads"),
 				internalJsonAllPositionCodonReadsDataFetcher
 			)
+			.dataFetcher(
+				coordinates("GeneSequenceReads", "allPositionCodonReads"),
+				makeAllPositionCodonReadsDataFetcher(virusIns)
+			)
 			.dataFetcher(
 				coordinates("GeneSequenceReads", "histogram"),
 				seqReadsHistogramDataFetcher
@@ -100,7 +120,7 @@ public class GeneSequenceReadsDef {
 					"The last sequenced position (start from 1) " +
 					"in protein relative to the reference sequence.")
 			)
-			.field(field -> field
+			.field(field -> positionRangeArgs.apply(field)
 				.type(new GraphQLList(oPositionCodonReads.get(virusName)))
 				.name("allPositionCodonReads")
 				.description(
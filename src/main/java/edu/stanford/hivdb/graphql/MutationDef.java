@@ -46,7 +46,7 @@ public class MutationDef {
 		Mutation<T> mutation = env.getSource();
 		Gene<T> gene = mutation.getGene();
 		Object src = env.getLocalContext();
-		GeneRegions<T> unseqRegions = UnsequencedRegionsDef.getUnsequencedRegionsFromSource(src, gene);
+		GeneRegions<T> unseqRegions = UnsequencedRegionsDef.getCachedUnsequencedRegions(src, gene);
 		if (unseqRegions == null) {
 			return mutation.isUnsequenced();
 		}
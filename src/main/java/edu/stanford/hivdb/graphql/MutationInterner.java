@@ -0,0 +1,126 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Parses mutation strings from user input once per distinct string and
+ * interns the parsed mutations by (gene, position, AAs), so that equal
+ * mutations share one instance.
+ *
+ * The memoized strings are bounded by their estimated retained bytes
+ * (env `MUTATION_INTERNER_MAXIMUM_BYTES`, default 64 MiB), since one
+ * string can expand to many mutations.
+ */
+public class MutationInterner {
+
+	private static final Cache<List<Object>, List<Mutation<?>>> parsedStrings;
+
+	private static final Cache<List<Object>, Mutation<?>> interned = (
+		CacheBuilder.newBuilder().weakValues().build());
+
+	static {
+		String maxBytes = System.getenv("MUTATION_INTERNER_MAXIMUM_BYTES");
+		if (maxBytes == null) {
+			maxBytes = "67108864";
+		}
+		parsedStrings = CacheBuilder.newBuilder()
+			.maximumWeight(Long.parseLong(maxBytes))
+			.weigher((List<Object> key, List<Mutation<?>> muts) -> estimateRetainedBytes(key, muts))
+			.build();
+	}
+
+	// interned mutations may be shared, but count each one in full to stay on the safe side
+	private static int estimateRetainedBytes(List<Object> key, List<Mutation<?>> muts) {
+		String mutation = (String) key.get(2);
+		return 128 + 2 * mutation.length() + 128 * muts.size();
+	}
+
+	protected static Mutation<?> intern(Mutation<?> mut) {
+		try {
+			return interned.get(
+				Arrays.asList(mut.getGene(), mut.getPosition(), mut.getAAs()),
+				() -> mut);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <VirusT extends Virus<VirusT>> List<Mutation<VirusT>> parseMutation(
+		VirusT virusIns, Gene<VirusT> gene, String mutation
+	) {
+		List<Mutation<?>> result;
+		try {
+			result = parsedStrings.get(
+				Arrays.asList(virusIns.getName(), gene, mutation),
+				() -> {
+					List<Mutation<?>> muts = new ArrayList<>();
+					MutationSet<VirusT> parsed = (
+						gene == null ?
+						virusIns.newMutationSet(List.of(mutation)) :
+						virusIns.newMutationSet(gene, List.of(mutation)));
+					for (Mutation<VirusT> mut : parsed) {
+						muts.add(intern(mut));
+					}
+					return muts;
+				});
+		}
+		catch (ExecutionException | UncheckedExecutionException e) {
+			// rethrow parse errors as is
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		return (List<Mutation<VirusT>>) (List<?>) result;
+	}
+
+	/**
+	 * Parses given mutation strings into a {@link MutationSet}.
+	 *
+	 * @param gene default gene of strings without gene prefix; can be null
+	 */
+	public static <VirusT extends Virus<VirusT>> MutationSet<VirusT> newMutationSet(
+		VirusT virusIns, Gene<VirusT> gene, Collection<String> mutations
+	) {
+		List<Mutation<VirusT>> muts = new ArrayList<>();
+		for (String mutation : mutations) {
+			muts.addAll(parseMutation(virusIns, gene, mutation));
+		}
+		return new MutationSet<>(muts);
+	}
+
+}
@@ -33,12 +33,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import com.google.common.collect.Sets;
-
 import edu.stanford.hivdb.mutations.Mutation;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
-import edu.stanford.hivdb.viruses.Gene;
 import edu.stanford.hivdb.viruses.Virus;
 
 import static edu.stanford.hivdb.graphql.GeneDef.oGene;
@@ -93,23 +90,11 @@ public class MutationPrevalenceDef {
 	}
 
 	private static <VirusT extends Virus<VirusT>> DataFetcher<List<Map<String, Object>>> makeSubtypeStatsDataFetcher(VirusT virusIns) {
+		ReferenceDataSnapshot<VirusT> snapshot = ReferenceDataSnapshot.of(virusIns);
 		return env -> {
 			String subtype = env.getSource();
 			Collection<String> includeGenes = env.getArgument("includeGenes");
-			Set<String> includeGeneSet = Sets.newHashSet(includeGenes);
-			return virusIns.getNumPatientsForAAPercents(virusIns.getMainStrain())
-				.entrySet().stream()
-				.filter(e -> includeGeneSet.contains(e.getKey().getAbstractGene()))
-				.map(e -> {
-					Gene<VirusT> gene = e.getKey();
-					Integer[] stat = e.getValue().get(subtype);
-					Map<String, Object> r = new HashMap<>();
-					r.put("gene", gene);
-					r.put("totalNaive", stat == null ? 0 : stat[0]);
-					r.put("totalTreated", stat == null ? 0 : stat[1]);
-					return r;
-				})
-				.collect(Collectors.toList());
+			return snapshot.getSubtypeStats(subtype, includeGenes);
 		};
 	};
 
@@ -46,7 +46,7 @@ import graphql.schema.GraphQLTypeReference;
 
 public class MutationSetDef {
 
-	private enum mutsFilterOption {
+	protected enum mutsFilterOption {
 		APOBEC, APOBEC_DRM,
 		DRM, notDRM,
 		SEQUENCED_ONLY,
@@ -235,6 +235,24 @@ public class MutationSetDef {
 	}
 
 
+	private static <VirusT extends Virus<VirusT>> MutationSet<VirusT> subtractsBy(
+		MutationSet<VirusT> mutations, MutationSet<VirusT> other
+	) {
+		PackedMutationSet<VirusT> packed = PackedMutationSet.of(mutations);
+		PackedMutationSet<VirusT> packedOther = packed == null ? null : PackedMutationSet.of(other);
+		PackedMutationSet<VirusT> result = packedOther == null ? null : packed.subtractsBy(packedOther);
+		return result == null ? mutations.subtractsBy(other) : result.toMutationSet();
+	}
+
+	private static <VirusT extends Virus<VirusT>> MutationSet<VirusT> intersectsWith(
+		MutationSet<VirusT> mutations, MutationSet<VirusT> other
+	) {
+		PackedMutationSet<VirusT> packed = PackedMutationSet.of(mutations);
+		PackedMutationSet<VirusT> packedOther = packed == null ? null : PackedMutationSet.of(other);
+		PackedMutationSet<VirusT> result = packedOther == null ? null : packed.intersectsWith(packedOther);
+		return result == null ? mutations.intersectsWith(other) : result.toMutationSet();
+	}
+
 	final private static <VirusT extends Virus<VirusT>> MutationSet<VirusT> filterMutations(MutationSet<VirusT> mutations, VirusT virusIns, DataFetchingEnvironment env) {
 		List<?> filterOptions = env.getArgument("filterOptions");
 		Collection<String> includeGenes = env.getArgument("includeGenes");
@@ -256,12 +274,12 @@ public class MutationSetDef {
 			case DRP:
 				mutations = mutations.getAtDRPMutations();
 			case notDRM:
-				mutations = mutations.subtractsBy(mutations.getDRMs());
+				mutations = subtractsBy(mutations, mutations.getDRMs());
 				break;
 			case SEQUENCED_ONLY:
 				Object src = env.getLocalContext();
 				mutations = mutations.filterByNoSplit(mut -> {
-					GeneRegions<VirusT> unseqRegions = UnsequencedRegionsDef.getUnsequencedRegionsFromSource(src, mut.getGene());
+					GeneRegions<VirusT> unseqRegions = UnsequencedRegionsDef.getCachedUnsequencedRegions(src, mut.getGene());
 					return !mut.isUnsequenced(unseqRegions);
 				});
 				break;
@@ -281,7 +299,7 @@ public class MutationSetDef {
 				mutations = mutations.getSDRMs();
 				break;
 			case notSDRM:
-				mutations = mutations.subtractsBy(mutations.getSDRMs());
+				mutations = subtractsBy(mutations, mutations.getSDRMs());
 				break;
 			case PI_SDRM:
 				mutations = mutations.getSDRMs(virusIns.getDrugClass("PI"));
@@ -299,7 +317,7 @@ public class MutationSetDef {
 				mutations = mutations.getTSMs();
 				break;
 			case notTSM:
-				mutations = mutations.subtractsBy(mutations.getTSMs());
+				mutations = subtractsBy(mutations, mutations.getTSMs());
 				break;
 			case PI_TSM:
 				mutations = mutations.getTSMs(virusIns.getDrugClass("PI"));
@@ -360,17 +378,12 @@ public class MutationSetDef {
 					WithGene<VirusT> source = env.getSource();
 					gene = source.getGene();
 				}
-				MutationSet<VirusT> filterSet = virusIns.newMutationSet(gene, customList);
-				mutations = mutations.intersectsWith(filterSet);
+				MutationSet<VirusT> filterSet = MutationInterner.newMutationSet(virusIns, gene, customList);
+				mutations = intersectsWith(mutations, filterSet);
 				break;
 			default: break;
 			}
 		}
-		if (includeGenes != null) {
-			mutations = mutations.filterByNoSplit(
-				mut -> includeGenes.contains(mut.getAbstractGene())
-			);
-		}
 		if (drugClass != null) {
 			mutations = mutations.filterBy(
 				mut -> (
@@ -380,9 +393,45 @@ public class MutationSetDef {
 				)
 			);
 		}
+		// the remaining filters don't split mutations and run on the packed set
+		PackedMutationSet<VirusT> packed = PackedMutationSet.of(mutations);
+		if (packed == null) {
+			return filterMutationsNoSplit(mutations, includeGenes, mutType, env);
+		}
+		if (includeGenes != null) {
+			packed = packed.filterByGenes(includeGenes);
+		}
+		if (mutType != null) {
+			packed = packed.filter(mut -> mut.getPrimaryType() == mutType);
+		}
+		if (PositionRangeDef.hasPositionRange(env)) {
+			packed = packed.filterByPositionRange(
+				PositionRangeDef.getFromPosition(env),
+				PositionRangeDef.getToPosition(env));
+		}
+		return packed.toMutationSet();
+	}
+
+	final private static <VirusT extends Virus<VirusT>> MutationSet<VirusT> filterMutationsNoSplit(
+		MutationSet<VirusT> mutations,
+		Collection<String> includeGenes,
+		MutationType<?> mutType,
+		DataFetchingEnvironment env
+	) {
+		if (includeGenes != null) {
+			mutations = mutations.filterByNoSplit(
+				mut -> includeGenes.contains(mut.getAbstractGene())
+			);
+		}
 		if (mutType != null) {
 			mutations = mutations.filterByNoSplit(mut -> mut.getPrimaryType() == mutType);
 		}
+		if (PositionRangeDef.hasPositionRange(env)) {
+			long fromPos = PositionRangeDef.getFromPosition(env);
+			long toPos = PositionRangeDef.getToPosition(env);
+			mutations = mutations.filterByNoSplit(
+				mut -> mut.getPosition() >= fromPos && mut.getPosition() <= toPos);
+		}
 		return mutations;
 	}
 
@@ -403,6 +452,8 @@ public class MutationSetDef {
 				.description("Specify a gene/genes for filtering the mutation set."));
 		}
 
+		builder = PositionRangeDef.positionRangeArgs.apply(builder);
+
 		return builder.argument(arg -> arg
 				.name("drugClass")
 				.type(DrugClassDef.enumDrugClass.get(virusName))
@@ -0,0 +1,258 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.execution.ExecutionContext;
+import graphql.execution.ExecutionStrategyParameters;
+import graphql.execution.instrumentation.Instrumentation;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationExecutionParameters;
+import graphql.language.AstPrinter;
+import graphql.language.Field;
+import graphql.schema.GraphQLObjectType;
+
+/**
+ * Query execution strategy of the opt-in normalized output mode.
+ *
+ * Each distinct `Gene`, `Drug`, `DrugClass` and `Mutation` sub-result is
+ * emitted once in `extensions.entities` and referred as `{"__ref": id}`
+ * in the data tree. `extensions.entitiesStats` reports the estimated JSON
+ * bytes of the normalized and of the regular output.
+ *
+ * The normalized data tree doesn't conform to the schema, therefore the
+ * mode is only available on a GraphQL instance built explicitly for it
+ * with `SierraSchema.makeGraphQL(virus, true, ...)`, which also
+ * chains {@link #getInstrumentation()} after the server instrumentations
+ * to collect the entities of each request. Without that instrumentation,
+ * results are not normalized.
+ *
+ * Sub-results are shared only within a request, and only between the same
+ * source objects, selection sets and local contexts, since fields like
+ * `Mutation.isUnsequenced` depend on the analysis context. Sub-results
+ * with errors under their own path are never shared.
+ */
+public class NormalizedEntitiesExecutionStrategy extends ReferenceObjectExecutionStrategy {
+
+	public static final Set<String> DEFAULT_ENTITY_TYPES = Set.of("Gene", "Drug", "DrugClass", "Mutation");
+
+	private static final String REF_KEY = "__ref";
+
+	private static class EntityKey {
+		private final String typeName;
+		private final Object source;
+		private final String selection;
+		private final Object localContext;
+
+		private EntityKey(String typeName, Object source, String selection, Object localContext) {
+			this.typeName = typeName;
+			this.source = source;
+			this.selection = selection;
+			this.localContext = localContext;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof EntityKey)) {
+				return false;
+			}
+			EntityKey other = (EntityKey) o;
+			return (
+				typeName.equals(other.typeName) &&
+				source.equals(other.source) &&
+				selection.equals(other.selection) &&
+				localContext == other.localContext
+			);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(typeName, source, selection, System.identityHashCode(localContext));
+		}
+	}
+
+	private static class Entities implements InstrumentationState {
+		private final Map<EntityKey, String> ids = new ConcurrentHashMap<>();
+		// entities in the order of their ids
+		private final Map<String, Object> table = new LinkedHashMap<>();
+
+		private synchronized String add(String typeName, Object data) {
+			String id = typeName + ":" + table.size();
+			table.put(id, data);
+			return id;
+		}
+
+		private synchronized Map<String, Object> copyTable() {
+			return new LinkedHashMap<>(table);
+		}
+	}
+
+	private final Set<String> entityTypes;
+
+	private final Instrumentation instrumentation = new SimpleInstrumentation() {
+
+		@Override
+		public InstrumentationState createState() {
+			return new Entities();
+		}
+
+		@Override
+		public CompletableFuture<ExecutionResult> instrumentExecutionResult(
+			ExecutionResult executionResult,
+			InstrumentationExecutionParameters parameters
+		) {
+			Entities entities = parameters.getInstrumentationState();
+			Map<String, Object> table = entities.copyTable();
+			Map<String, Long> expandedSizes = new HashMap<>();
+			long normalizedBytes = (
+				estimateJSONBytes(executionResult.getData(), null, null) +
+				estimateJSONBytes(table, null, null));
+			long regularBytes = estimateJSONBytes(executionResult.getData(), table, expandedSizes);
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("numEntities", table.size());
+			stats.put("estimatedNormalizedBytes", normalizedBytes);
+			stats.put("estimatedRegularBytes", regularBytes);
+			return CompletableFuture.completedFuture(
+				ExecutionResultImpl.newExecutionResult()
+				.from(executionResult)
+				.addExtension("entities", table)
+				.addExtension("entitiesStats", stats)
+				.build());
+		}
+	};
+
+	// printed selection sets of field nodes
+	private final Cache<Field, String> printedSelections = CacheBuilder.newBuilder().weakKeys().build();
+
+	public NormalizedEntitiesExecutionStrategy() {
+		this(DEFAULT_ENTITY_TYPES);
+	}
+
+	public NormalizedEntitiesExecutionStrategy(Set<String> entityTypes) {
+		super();
+		this.entityTypes = Set.copyOf(entityTypes);
+	}
+
+	/**
+	 * Returns the instrumentation which collects the entities of each
+	 * request and emits them in the extensions.
+	 */
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	private String getPrintedSelection(ExecutionStrategyParameters parameters) {
+		StringBuilder printed = new StringBuilder();
+		for (Field field : parameters.getField().getFields()) {
+			try {
+				printed.append(printedSelections.get(field, () -> (
+					field.getSelectionSet() == null ? "" : AstPrinter.printAst(field.getSelectionSet())
+				)));
+			}
+			catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return printed.toString();
+	}
+
+	@Override
+	protected CompletableFuture<ExecutionResult> completeValueForObject(
+		ExecutionContext executionContext,
+		ExecutionStrategyParameters parameters,
+		GraphQLObjectType resolvedObjectType,
+		Object result
+	) {
+		CompletableFuture<ExecutionResult> future = super.completeValueForObject(
+			executionContext, parameters, resolvedObjectType, result);
+		InstrumentationState state = executionContext.getInstrumentationState();
+		if (!entityTypes.contains(resolvedObjectType.getName()) || !(state instanceof Entities)) {
+			return future;
+		}
+		Entities entities = (Entities) state;
+		return future.thenApply(executionResult -> {
+			if (executionResult.getData() == null || hasErrors(executionContext, parameters.getPath())) {
+				return executionResult;
+			}
+			EntityKey key = new EntityKey(
+				resolvedObjectType.getName(), result,
+				getPrintedSelection(parameters), parameters.getLocalContext());
+			String id = entities.ids.computeIfAbsent(
+				key, k -> entities.add(k.typeName, executionResult.getData()));
+			Map<String, Object> ref = new LinkedHashMap<>();
+			ref.put(REF_KEY, id);
+			return new ExecutionResultImpl(ref, executionResult.getErrors());
+		});
+	}
+
+	/**
+	 * Estimates the compact JSON bytes of given value. References are
+	 * expanded when the entity table is given.
+	 */
+	private static long estimateJSONBytes(Object value, Map<String, Object> table, Map<String, Long> expandedSizes) {
+		if (value == null) {
+			return 4;
+		}
+		if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			if (table != null && map.size() == 1 && map.get(REF_KEY) instanceof String) {
+				String id = (String) map.get(REF_KEY);
+				Long size = expandedSizes.get(id);
+				if (size == null) {
+					size = estimateJSONBytes(table.get(id), table, expandedSizes);
+					expandedSizes.put(id, size);
+				}
+				return size;
+			}
+			long size = 2;
+			for (Map.Entry<?, ?> e : map.entrySet()) {
+				size += String.valueOf(e.getKey()).length() + 4;
+				size += estimateJSONBytes(e.getValue(), table, expandedSizes);
+			}
+			return size;
+		}
+		if (value instanceof List) {
+			long size = 2;
+			for (Object item : (List<?>) value) {
+				size += estimateJSONBytes(item, table, expandedSizes) + 1;
+			}
+			return size;
+		}
+		if (value instanceof CharSequence) {
+			return ((CharSequence) value).length() + 2;
+		}
+		return String.valueOf(value).length();
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Packed representation of a {@link MutationSet} used by the filter layer.
+ *
+ * Each mutation is encoded into a long (gene id: 8 bits, position: 24 bits,
+ * AA bitmask: 32 bits) kept in a sorted primitive array, so that set
+ * operations and filters are merge scans over the array. Mutation objects
+ * are only collected back into a {@link MutationSet} by
+ * {@link #toMutationSet()}.
+ */
+public class PackedMutationSet<VirusT extends Virus<VirusT>> {
+
+	private static final String AA_ALPHABET = "ACDEFGHIKLMNPQRSTVWY_-*X";
+	// the sign bit is left unused so that codes are never negative
+	private static final int MAXIMUM_GENES = 128;
+	private static final int MAXIMUM_POSITION = (1 << 24) - 1;
+
+	private static final Map<Gene<?>, Integer> geneIds = new ConcurrentHashMap<>();
+	private static final List<String> abstractGenes = new ArrayList<>();
+
+	private final MutationSet<VirusT> origin;
+	private final long[] codes;
+	private final Mutation<?>[] mutations;
+
+	private PackedMutationSet(MutationSet<VirusT> origin, long[] codes, Mutation<?>[] mutations) {
+		this.origin = origin;
+		this.codes = codes;
+		this.mutations = mutations;
+	}
+
+	private static int getGeneId(Gene<?> gene) {
+		Integer geneId = geneIds.get(gene);
+		if (geneId != null) {
+			return geneId;
+		}
+		synchronized (abstractGenes) {
+			geneId = geneIds.get(gene);
+			if (geneId == null) {
+				if (abstractGenes.size() == MAXIMUM_GENES) {
+					return -1;
+				}
+				geneId = abstractGenes.size();
+				abstractGenes.add(gene.getAbstractGene());
+				geneIds.put(gene, geneId);
+			}
+			return geneId;
+		}
+	}
+
+	private static long encode(Mutation<?> mut) {
+		int geneId = getGeneId(mut.getGene());
+		long pos = mut.getPosition();
+		if (geneId < 0 || pos < 0 || pos > MAXIMUM_POSITION) {
+			return -1;
+		}
+		long mask = 0;
+		String aas = mut.getAAs();
+		for (int i = 0; i < aas.length(); i ++) {
+			int bit = AA_ALPHABET.indexOf(aas.charAt(i));
+			if (bit < 0) {
+				return -1;
+			}
+			mask |= 1L << bit;
+		}
+		return ((long) geneId << 56) | (pos << 32) | mask;
+	}
+
+	/**
+	 * Packs given mutation set. Returns null if any of the mutations can't
+	 * be encoded, or if more than one mutation share a position.
+	 *
+	 * Packing is a primitive sort and is not memoized; the packed set keeps
+	 * its origin only to return it unchanged from {@link #toMutationSet()}.
+	 */
+	public static <VirusT extends Virus<VirusT>> PackedMutationSet<VirusT> of(MutationSet<VirusT> mutSet) {
+		int size = mutSet.size();
+		long[] codes = new long[size];
+		Mutation<?>[] muts = new Mutation<?>[size];
+		int idx = 0;
+		for (Mutation<VirusT> mut : mutSet) {
+			long code = encode(mut);
+			if (code < 0) {
+				return null;
+			}
+			codes[idx] = code;
+			muts[idx] = mut;
+			idx ++;
+		}
+		long[] sortedCodes = codes.clone();
+		Arrays.sort(sortedCodes);
+		for (int i = 1; i < size; i ++) {
+			if ((sortedCodes[i] >>> 32) == (sortedCodes[i - 1] >>> 32)) {
+				return null;
+			}
+		}
+		// codes are unique now, so each one finds its own slot
+		Mutation<?>[] sortedMuts = new Mutation<?>[size];
+		for (int i = 0; i < size; i ++) {
+			sortedMuts[Arrays.binarySearch(sortedCodes, codes[i])] = muts[i];
+		}
+		return new PackedMutationSet<>(mutSet, sortedCodes, sortedMuts);
+	}
+
+	public int size() {
+		return codes.length;
+	}
+
+	private PackedMutationSet<VirusT> select(boolean[] keep, int numKeep) {
+		if (numKeep == codes.length) {
+			return this;
+		}
+		long[] newCodes = new long[numKeep];
+		Mutation<?>[] newMuts = new Mutation<?>[numKeep];
+		int idx = 0;
+		for (int i = 0; i < codes.length; i ++) {
+			if (keep[i]) {
+				newCodes[idx] = codes[i];
+				newMuts[idx] = mutations[i];
+				idx ++;
+			}
+		}
+		return new PackedMutationSet<>(null, newCodes, newMuts);
+	}
+
+	/**
+	 * Merge scan of this and another set. Mutations at positions which
+	 * are in both sets are kept (or removed) when their AAs are equal and
+	 * removed (or kept) when their AAs are disjoint. Returns null when any
+	 * AAs partially overlap, since the mutation would have to be split.
+	 */
+	private PackedMutationSet<VirusT> mergeScan(PackedMutationSet<VirusT> other, boolean keepShared) {
+		boolean[] keep = new boolean[codes.length];
+		int numKeep = 0;
+		int j = 0;
+		for (int i = 0; i < codes.length; i ++) {
+			long key = codes[i] >>> 32;
+			while (j < other.codes.length && (other.codes[j] >>> 32) < key) {
+				j ++;
+			}
+			boolean shared = false;
+			if (j < other.codes.length && (other.codes[j] >>> 32) == key) {
+				long mask = codes[i] & 0xffffffffL;
+				long otherMask = other.codes[j] & 0xffffffffL;
+				if (mask == otherMask) {
+					shared = true;
+				}
+				else if ((mask & otherMask) != 0) {
+					return null;
+				}
+			}
+			if (shared == keepShared) {
+				keep[i] = true;
+				numKeep ++;
+			}
+		}
+		return select(keep, numKeep);
+	}
+
+	/**
+	 * Returns mutations of this set which are not in the other set, or null
+	 * if the AAs at a shared position partially overlap.
+	 */
+	public PackedMutationSet<VirusT> subtractsBy(PackedMutationSet<VirusT> other) {
+		return mergeScan(other, false);
+	}
+
+	/**
+	 * Returns mutations of this set which are also in the other set, or
+	 * null if the AAs at a shared position partially overlap.
+	 */
+	public PackedMutationSet<VirusT> intersectsWith(PackedMutationSet<VirusT> other) {
+		return mergeScan(other, true);
+	}
+
+	public PackedMutationSet<VirusT> filterByGenes(Collection<String> includeGenes) {
+		boolean[] includeGeneIds = new boolean[MAXIMUM_GENES];
+		synchronized (abstractGenes) {
+			for (int geneId = 0; geneId < abstractGenes.size(); geneId ++) {
+				includeGeneIds[geneId] = includeGenes.contains(abstractGenes.get(geneId));
+			}
+		}
+		boolean[] keep = new boolean[codes.length];
+		int numKeep = 0;
+		for (int i = 0; i < codes.length; i ++) {
+			if (includeGeneIds[(int) (codes[i] >>> 56)]) {
+				keep[i] = true;
+				numKeep ++;
+			}
+		}
+		return select(keep, numKeep);
+	}
+
+	public PackedMutationSet<VirusT> filterByPositionRange(long fromPos, long toPos) {
+		boolean[] keep = new boolean[codes.length];
+		int numKeep = 0;
+		for (int i = 0; i < codes.length; i ++) {
+			long pos = (codes[i] >>> 32) & MAXIMUM_POSITION;
+			if (pos >= fromPos && pos <= toPos) {
+				keep[i] = true;
+				numKeep ++;
+			}
+		}
+		return select(keep, numKeep);
+	}
+
+	/**
+	 * Filters mutations by given predicate without splitting them.
+	 */
+	@SuppressWarnings("unchecked")
+	public PackedMutationSet<VirusT> filter(Predicate<Mutation<VirusT>> predicate) {
+		boolean[] keep = new boolean[codes.length];
+		int numKeep = 0;
+		for (int i = 0; i < codes.length; i ++) {
+			if (predicate.test((Mutation<VirusT>) mutations[i])) {
+				keep[i] = true;
+				numKeep ++;
+			}
+		}
+		return select(keep, numKeep);
+	}
+
+	@SuppressWarnings("unchecked")
+	public MutationSet<VirusT> toMutationSet() {
+		if (origin != null) {
+			return origin;
+		}
+		List<Mutation<VirusT>> muts = new ArrayList<>(mutations.length);
+		for (Mutation<?> mut : mutations) {
+			muts.add((Mutation<VirusT>) mut);
+		}
+		return new MutationSet<>(muts);
+	}
+
+}
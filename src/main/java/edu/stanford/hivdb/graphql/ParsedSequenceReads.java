@@ -0,0 +1,111 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.mutations.PositionCodonReads;
+import edu.stanford.hivdb.seqreads.SequenceReads;
+import edu.stanford.hivdb.viruses.Strain;
+import edu.stanford.hivdb.viruses.UntranslatedRegion;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * A parsed `SequenceReadsInput`.
+ *
+ * The codon reads are parsed only once and can be used to build
+ * {@link SequenceReads} objects with different cutoffs.
+ */
+public class ParsedSequenceReads<VirusT extends Virus<VirusT>> {
+
+	private final String name;
+	private final Strain<VirusT> strain;
+	private final List<PositionCodonReads<VirusT>> allReads;
+	private final List<UntranslatedRegion> untransRegions;
+	private final Double maxMixtureRate;
+	private final Double minPrevalence;
+	private final Long minCodonReads;
+	private final Long minPositionReads;
+
+	public ParsedSequenceReads(
+		String name,
+		Strain<VirusT> strain,
+		List<PositionCodonReads<VirusT>> allReads,
+		List<UntranslatedRegion> untransRegions,
+		Double maxMixtureRate,
+		Double minPrevalence,
+		Long minCodonReads,
+		Long minPositionReads
+	) {
+		this.name = name;
+		this.strain = strain;
+		this.allReads = allReads;
+		this.untransRegions = untransRegions;
+		this.maxMixtureRate = maxMixtureRate;
+		this.minPrevalence = minPrevalence;
+		this.minCodonReads = minCodonReads;
+		this.minPositionReads = minPositionReads;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Strain<VirusT> getStrain() {
+		return strain;
+	}
+
+	public List<PositionCodonReads<VirusT>> getAllReads() {
+		return allReads;
+	}
+
+	public List<UntranslatedRegion> getUntranslatedRegions() {
+		return untransRegions;
+	}
+
+	public SequenceReads<VirusT> toSequenceReads() {
+		return SequenceReads.fromCodonReadsTable(
+			name, strain, allReads, untransRegions,
+			maxMixtureRate, minPrevalence, minCodonReads, minPositionReads);
+	}
+
+	/**
+	 * Builds a {@link SequenceReads} object with the given cutoffs. Cutoffs
+	 * which are absent from the map fall back to the input's.
+	 */
+	public SequenceReads<VirusT> toSequenceReads(Map<String, Object> cutoffs) {
+		if (cutoffs == null) {
+			return toSequenceReads();
+		}
+		return SequenceReads.fromCodonReadsTable(
+			name, strain, allReads, untransRegions,
+			getOrDefault(cutoffs, "maxMixtureRate", maxMixtureRate),
+			getOrDefault(cutoffs, "minPrevalence", minPrevalence),
+			getOrDefault(cutoffs, "minCodonReads", minCodonReads),
+			getOrDefault(cutoffs, "minPositionReads", minPositionReads));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T getOrDefault(Map<String, Object> cutoffs, String key, T defaultValue) {
+		Object value = cutoffs.get(key);
+		return value == null ? defaultValue : (T) value;
+	}
+
+}
@@ -18,6 +18,7 @@
 
 package edu.stanford.hivdb.graphql;
 
+import graphql.execution.DataFetcherResult;
 import graphql.schema.*;
 
 import static graphql.Scalars.*;
@@ -26,9 +27,13 @@ import static graphql.schema.GraphQLInputObjectType.newInputObject;
 import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
@@ -87,8 +92,92 @@ public class PositionCodonReadsDef {
 			.description("Number of reads for this codon."))
 		.build();
 	
+	/**
+	 * Codon reads of one position sorted by proportion (descending), with
+	 * the non-reference codons kept in a second sorted list.
+	 */
+	protected static class CodonReadsIndex<VirusT extends Virus<VirusT>> {
+		private final List<CodonReads<VirusT>> allCodonReads;
+		private final double[] allProportions;
+		private final List<CodonReads<VirusT>> mutCodonReads;
+		private final double[] mutProportions;
+		private final Map<Object, Double> aaPercents = new ConcurrentHashMap<>();
+
+		private CodonReadsIndex(PositionCodonReads<VirusT> pcr) {
+			List<CodonReads<VirusT>> codonReads = new ArrayList<>(
+				pcr.getCodonReads(false, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY));
+			codonReads.sort(Comparator.comparingDouble((CodonReads<VirusT> cr) -> cr.getProportion()).reversed());
+			allCodonReads = Collections.unmodifiableList(codonReads);
+			allProportions = toProportions(allCodonReads);
+			mutCodonReads = Collections.unmodifiableList(
+				codonReads.stream()
+				.filter(cr -> !cr.isReference())
+				.collect(Collectors.toList()));
+			mutProportions = toProportions(mutCodonReads);
+		}
+
+		private static double[] toProportions(List<? extends CodonReads<?>> codonReads) {
+			return codonReads.stream().mapToDouble(cr -> cr.getProportion()).toArray();
+		}
+
+		// index of the first element whose proportion is lower than the given value
+		protected static int lowerThan(double[] props, double value) {
+			int lo = 0, hi = props.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (props[mid] < value) {
+					hi = mid;
+				}
+				else {
+					lo = mid + 1;
+				}
+			}
+			return lo;
+		}
+
+		// index of the first element whose proportion is not higher than the given value
+		protected static int notHigherThan(double[] props, double value) {
+			int lo = 0, hi = props.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (props[mid] <= value) {
+					hi = mid;
+				}
+				else {
+					lo = mid + 1;
+				}
+			}
+			return lo;
+		}
+
+		private List<CodonReads<VirusT>> getCodonReads(boolean mutationOnly, Double maxProportion, Double minProportion) {
+			List<CodonReads<VirusT>> codonReads = mutationOnly ? mutCodonReads : allCodonReads;
+			double[] props = mutationOnly ? mutProportions : allProportions;
+			int start = maxProportion == null ? 0 : notHigherThan(props, maxProportion);
+			int stop = minProportion == null ? props.length : lowerThan(props, minProportion);
+			if (start >= stop) {
+				return Collections.emptyList();
+			}
+			return codonReads.subList(start, stop);
+		}
+
+		private Double getAAPercent(CodonReads<?> cr) {
+			return aaPercents.computeIfAbsent(cr.getAminoAcid(), aa -> cr.getAAPercent());
+		}
+	}
+
+	private static <VirusT extends Virus<VirusT>> CodonReadsIndex<VirusT> getCodonReadsIndex(PositionCodonReads<VirusT> pcr) {
+		return SourceMemoizer.memoize(
+			pcr, CodonReadsIndex.class, () -> new CodonReadsIndex<>(pcr));
+	}
+
 	private static DataFetcher<Double> aaPercentDataFetcher = env -> {
 		CodonReads<?> cr = env.getSource();
+		Object localContext = env.getLocalContext();
+		if (localContext instanceof CodonReadsIndex) {
+			// codons of the same amino acid share the same prevalence
+			return ((CodonReadsIndex<?>) localContext).getAAPercent(cr);
+		}
 		return cr.getAAPercent();
 	};
 	
@@ -203,13 +292,20 @@ public class PositionCodonReadsDef {
 		)
 	);
 	
-	private static <VirusT extends Virus<VirusT>> DataFetcher<List<CodonReads<VirusT>>> makeOneCodonReadsDataFetcher(VirusT virusIns) {
+	private static <VirusT extends Virus<VirusT>> DataFetcher<DataFetcherResult<List<CodonReads<VirusT>>>> makeOneCodonReadsDataFetcher(VirusT virusIns) {
 		return env -> {
 			PositionCodonReads<VirusT> pcr = env.getSource();
-			return pcr.getCodonReads(
-				(Boolean) env.getArgument("mutationOnly"),
-				(double) env.getArgument("maxProportion"),
-				(double) env.getArgument("minProportion")
+			CodonReadsIndex<VirusT> index = getCodonReadsIndex(pcr);
+			Boolean mutationOnly = env.getArgument("mutationOnly");
+			return (
+				new DataFetcherResult.Builder<List<CodonReads<VirusT>>>()
+				.data(index.getCodonReads(
+					Boolean.TRUE.equals(mutationOnly),
+					env.getArgument("maxProportion"),
+					env.getArgument("minProportion")
+				))
+				.localContext(index)
+				.build()
 			);
 		};
 	};
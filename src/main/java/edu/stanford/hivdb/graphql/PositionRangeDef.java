@@ -0,0 +1,128 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import graphql.schema.*;
+import static graphql.Scalars.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+public class PositionRangeDef {
+
+	/**
+	 * Items sorted by position with their positions in a primitive array.
+	 */
+	public static class PositionIndex<T> {
+		private final List<T> items;
+		private final long[] positions;
+
+		public PositionIndex(List<T> items, Function<T, Number> getPosition) {
+			List<T> sorted = new ArrayList<>(items);
+			sorted.sort(Comparator.comparingLong(item -> getPosition.apply(item).longValue()));
+			this.items = Collections.unmodifiableList(sorted);
+			this.positions = sorted.stream().mapToLong(item -> getPosition.apply(item).longValue()).toArray();
+		}
+
+		private static int firstNotLowerThan(long[] positions, long value) {
+			int lo = 0, hi = positions.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (positions[mid] < value) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Returns a view of items whose positions are within [from, to].
+		 */
+		public List<T> slice(long from, long to) {
+			int start = firstNotLowerThan(positions, from);
+			int stop = to == Long.MAX_VALUE ? positions.length : firstNotLowerThan(positions, to + 1);
+			if (start >= stop) {
+				return Collections.emptyList();
+			}
+			return items.subList(start, stop);
+		}
+	}
+
+	/**
+	 * Per-group (e.g. per-gene) position indexes of a list which spans
+	 * several groups. Groups are kept in their first-seen order.
+	 */
+	public static class GroupedPositionIndex<T> {
+		private final Map<Object, PositionIndex<T>> indexes = new LinkedHashMap<>();
+
+		public GroupedPositionIndex(List<T> items, Function<T, Object> getGroup, Function<T, Number> getPosition) {
+			Map<Object, List<T>> groups = new LinkedHashMap<>();
+			for (T item : items) {
+				groups.computeIfAbsent(getGroup.apply(item), k -> new ArrayList<>()).add(item);
+			}
+			for (Map.Entry<Object, List<T>> e : groups.entrySet()) {
+				indexes.put(e.getKey(), new PositionIndex<>(e.getValue(), getPosition));
+			}
+		}
+
+		public List<T> slice(long from, long to) {
+			List<T> result = new ArrayList<>();
+			for (PositionIndex<T> index : indexes.values()) {
+				result.addAll(index.slice(from, to));
+			}
+			return result;
+		}
+	}
+
+	public static UnaryOperator<GraphQLFieldDefinition.Builder> positionRangeArgs = field -> field
+		.argument(arg -> arg
+			.type(GraphQLInt)
+			.name("fromPosition")
+			.description("Only return items at or after this position.")
+		)
+		.argument(arg -> arg
+			.type(GraphQLInt)
+			.name("toPosition")
+			.description("Only return items at or before this position.")
+		);
+
+	public static boolean hasPositionRange(DataFetchingEnvironment env) {
+		return env.getArgument("fromPosition") != null || env.getArgument("toPosition") != null;
+	}
+
+	public static long getFromPosition(DataFetchingEnvironment env) {
+		Integer from = env.getArgument("fromPosition");
+		return from == null ? Long.MIN_VALUE : from;
+	}
+
+	public static long getToPosition(DataFetchingEnvironment env) {
+		Integer to = env.getArgument("toPosition");
+		return to == null ? Long.MAX_VALUE : to;
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.google.common.base.Suppliers;
+
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.viruses.Gene;
+import edu.stanford.hivdb.viruses.Strain;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Immutable snapshot of the reference data served by the static root
+ * fields (`currentVersion`, `currentProgramVersion`, `genes` and
+ * `mutationPrevalenceSubtypes`).
+ *
+ * The snapshot is built once per virus when the schema is built, since
+ * these fields only depend on the deployed data.
+ */
+public class ReferenceDataSnapshot<VirusT extends Virus<VirusT>> {
+
+	private static final Map<Virus<?>, ReferenceDataSnapshot<?>> snapshots = new ConcurrentHashMap<>();
+	// the version of this program is the same for every virus
+	private static final Supplier<Map<String, String>> sierraVersion = Suppliers.memoize(
+		() -> Collections.unmodifiableMap(SierraVersionDef.loadSierraVersion()));
+
+	@SuppressWarnings("unchecked")
+	public static <VirusT extends Virus<VirusT>> ReferenceDataSnapshot<VirusT> of(VirusT virusIns) {
+		return (ReferenceDataSnapshot<VirusT>) snapshots.computeIfAbsent(
+			virusIns, v -> new ReferenceDataSnapshot<>(virusIns));
+	}
+
+	private final VirusT virusIns;
+	private final DrugResistanceAlgorithm<VirusT> currentAlgorithm;
+	private final List<Gene<VirusT>> allGenes;
+	private final Map<String, Gene<VirusT>> genesByName;
+	private final List<String> mainSubtypes;
+	private final Map<Gene<VirusT>, Map<String, Integer[]>> numPatients;
+	private final Set<String> statGenes;
+	private final Map<String, List<Map<String, Object>>> subtypeStats = new ConcurrentHashMap<>();
+
+	private ReferenceDataSnapshot(VirusT virusIns) {
+		this.virusIns = virusIns;
+		currentAlgorithm = virusIns.getDefaultDrugResistAlgorithm();
+
+		List<Gene<VirusT>> genes = new ArrayList<>();
+		Map<String, Gene<VirusT>> byName = new LinkedHashMap<>();
+		List<String> subtypes = new ArrayList<>();
+		for (Strain<VirusT> strain : virusIns.getStrains()) {
+			for (Gene<VirusT> gene : strain.getGenes()) {
+				genes.add(gene);
+				byName.putIfAbsent(gene.getName(), gene);
+			}
+			subtypes.addAll(virusIns.getMainSubtypes(strain));
+		}
+		// abstract gene names (e.g. "PR") resolve to the main strain
+		for (Gene<VirusT> gene : virusIns.getMainStrain().getGenes()) {
+			byName.putIfAbsent(gene.getAbstractGene(), gene);
+		}
+		allGenes = Collections.unmodifiableList(genes);
+		genesByName = Collections.unmodifiableMap(byName);
+		mainSubtypes = Collections.unmodifiableList(subtypes);
+
+		numPatients = virusIns.getNumPatientsForAAPercents(virusIns.getMainStrain());
+		Set<String> geneSet = new HashSet<>();
+		for (Gene<VirusT> gene : numPatients.keySet()) {
+			geneSet.add(gene.getAbstractGene());
+		}
+		statGenes = Collections.unmodifiableSet(geneSet);
+		for (String subtype : mainSubtypes) {
+			subtypeStats.put(subtype, makeSubtypeStats(subtype));
+		}
+	}
+
+	private List<Map<String, Object>> makeSubtypeStats(String subtype) {
+		List<Map<String, Object>> stats = new ArrayList<>();
+		for (Map.Entry<Gene<VirusT>, Map<String, Integer[]>> e : numPatients.entrySet()) {
+			Integer[] stat = e.getValue().get(subtype);
+			Map<String, Object> r = new LinkedHashMap<>();
+			r.put("gene", e.getKey());
+			r.put("totalNaive", stat == null ? 0 : stat[0]);
+			r.put("totalTreated", stat == null ? 0 : stat[1]);
+			stats.add(Collections.unmodifiableMap(r));
+		}
+		return Collections.unmodifiableList(stats);
+	}
+
+	public static Map<String, String> getCurrentSierraVersion() {
+		return sierraVersion.get();
+	}
+
+	public DrugResistanceAlgorithm<VirusT> getCurrentAlgorithm() {
+		return currentAlgorithm;
+	}
+
+	public List<Gene<VirusT>> getAllGenes() {
+		return allGenes;
+	}
+
+	public List<String> getMainSubtypes() {
+		return mainSubtypes;
+	}
+
+	/**
+	 * Resolves a gene by its full or abstract name. Names which are not in
+	 * the snapshot are resolved by the main strain.
+	 */
+	public Gene<VirusT> getGene(String name) {
+		Gene<VirusT> gene = genesByName.get(name);
+		if (gene == null) {
+			gene = virusIns.getMainStrain().getGene(name);
+		}
+		return gene;
+	}
+
+	/**
+	 * Returns the subtype statistics of given genes. The precomputed list
+	 * is returned as is when all genes are included.
+	 */
+	public List<Map<String, Object>> getSubtypeStats(String subtype, Collection<String> includeGenes) {
+		List<Map<String, Object>> stats = subtypeStats.computeIfAbsent(subtype, this::makeSubtypeStats);
+		Set<String> includeGeneSet = includeGenes == null ? statGenes : new HashSet<>(includeGenes);
+		if (includeGeneSet.containsAll(statGenes)) {
+			return stats;
+		}
+		List<Map<String, Object>> result = new ArrayList<>();
+		for (Map<String, Object> stat : stats) {
+			Gene<?> gene = (Gene<?>) stat.get("gene");
+			if (includeGeneSet.contains(gene.getAbstractGene())) {
+				result.add(stat);
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import graphql.ExecutionResult;
+import graphql.GraphQLError;
+import graphql.execution.AsyncExecutionStrategy;
+import graphql.execution.DataFetcherExceptionHandler;
+import graphql.execution.ExecutionContext;
+import graphql.execution.ExecutionPath;
+import graphql.execution.ExecutionStrategyParameters;
+import graphql.execution.MergedField;
+import graphql.language.Argument;
+import graphql.language.ArrayValue;
+import graphql.language.AstPrinter;
+import graphql.language.Field;
+import graphql.language.InlineFragment;
+import graphql.language.ObjectField;
+import graphql.language.ObjectValue;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.language.Value;
+import graphql.language.VariableReference;
+import graphql.schema.GraphQLEnumType;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLScalarType;
+import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeUtil;
+
+/**
+ * Query execution strategy which memoizes the completed sub-results of
+ * immutable reference objects (genes, drugs, drug classes and strains).
+ *
+ * The sub-results are memoized within a request, per source object, local
+ * context and selection set. Selection sets which use variables,
+ * directives or named fragments, or which select any non-reference
+ * object, are always resolved normally, and so are sub-results with
+ * errors under their own path.
+ *
+ * {@link SierraSchema#makeGraphQL} installs it as the query strategy.
+ */
+public class ReferenceObjectExecutionStrategy extends AsyncExecutionStrategy {
+
+	public static final Set<String> DEFAULT_REFERENCE_TYPES = Set.of("Gene", "Drug", "DrugClass", "Strain");
+
+	private static final int MAXIMUM_SUB_RESULTS_PER_REQUEST = 65536;
+	private static final String NOT_CACHEABLE = "";
+
+	private final Set<String> referenceTypes;
+
+	// printed selection keys of field nodes; NOT_CACHEABLE if not cacheable
+	private final Cache<Field, String> selectionKeys = CacheBuilder.newBuilder().weakKeys().build();
+
+	private static class SubResultKey {
+		private final Object source;
+		private final Object localContext;
+		private final String selectionKey;
+
+		private SubResultKey(Object source, Object localContext, String selectionKey) {
+			this.source = source;
+			this.localContext = localContext;
+			this.selectionKey = selectionKey;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SubResultKey)) {
+				return false;
+			}
+			SubResultKey other = (SubResultKey) o;
+			return (
+				source == other.source &&
+				localContext == other.localContext &&
+				selectionKey.equals(other.selectionKey)
+			);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(
+				System.identityHashCode(source),
+				System.identityHashCode(localContext),
+				selectionKey);
+		}
+	}
+
+	// per request; released with the execution context
+	private final Cache<ExecutionContext, Map<SubResultKey, ExecutionResult>> subResults = CacheBuilder.newBuilder().weakKeys().build();
+
+	public ReferenceObjectExecutionStrategy() {
+		this(DEFAULT_REFERENCE_TYPES);
+	}
+
+	public ReferenceObjectExecutionStrategy(Set<String> referenceTypes) {
+		super();
+		this.referenceTypes = Set.copyOf(referenceTypes);
+	}
+
+	public ReferenceObjectExecutionStrategy(Set<String> referenceTypes, DataFetcherExceptionHandler exceptionHandler) {
+		super(exceptionHandler);
+		this.referenceTypes = Set.copyOf(referenceTypes);
+	}
+
+	@Override
+	protected CompletableFuture<ExecutionResult> completeValueForObject(
+		ExecutionContext executionContext,
+		ExecutionStrategyParameters parameters,
+		GraphQLObjectType resolvedObjectType,
+		Object result
+	) {
+		String key = getSelectionKey(resolvedObjectType, parameters.getField());
+		if (key.isEmpty()) {
+			return super.completeValueForObject(executionContext, parameters, resolvedObjectType, result);
+		}
+		Map<SubResultKey, ExecutionResult> memo;
+		try {
+			memo = subResults.get(executionContext, ConcurrentHashMap::new);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		SubResultKey subResultKey = new SubResultKey(result, parameters.getLocalContext(), key);
+		ExecutionResult cached = memo.get(subResultKey);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return super
+			.completeValueForObject(executionContext, parameters, resolvedObjectType, result)
+			.thenApply(executionResult -> {
+				if (
+					memo.size() < MAXIMUM_SUB_RESULTS_PER_REQUEST &&
+					!hasErrors(executionContext, parameters.getPath())
+				) {
+					memo.putIfAbsent(subResultKey, executionResult);
+				}
+				return executionResult;
+			});
+	}
+
+	/**
+	 * Returns true if any error of the request is at or under given path.
+	 *
+	 * Errors of an `ExecutionResult` are the errors of the whole request,
+	 * so they can't tell if a sub-result is complete.
+	 */
+	protected static boolean hasErrors(ExecutionContext executionContext, ExecutionPath path) {
+		List<Object> prefix = path.toList();
+		for (GraphQLError error : executionContext.getErrors()) {
+			List<Object> errorPath = error.getPath();
+			if (
+				errorPath != null &&
+				errorPath.size() >= prefix.size() &&
+				errorPath.subList(0, prefix.size()).equals(prefix)
+			) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String getSelectionKey(GraphQLObjectType type, MergedField mergedField) {
+		if (!referenceTypes.contains(type.getName()) || mergedField.getFields().size() != 1) {
+			return NOT_CACHEABLE;
+		}
+		Field field = mergedField.getSingleField();
+		try {
+			return selectionKeys.get(field, () -> {
+				SelectionSet selectionSet = field.getSelectionSet();
+				if (!isCacheable(type, selectionSet)) {
+					return NOT_CACHEABLE;
+				}
+				return type.getName() + AstPrinter.printAst(selectionSet);
+			});
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private boolean isCacheable(GraphQLObjectType type, SelectionSet selectionSet) {
+		if (selectionSet == null) {
+			return true;
+		}
+		for (Selection<?> selection : selectionSet.getSelections()) {
+			if (selection instanceof Field) {
+				Field field = (Field) selection;
+				if (!field.getDirectives().isEmpty()) {
+					return false;
+				}
+				for (Argument arg : field.getArguments()) {
+					if (hasVariable(arg.getValue())) {
+						return false;
+					}
+				}
+				if (field.getName().startsWith("__")) {
+					continue;
+				}
+				GraphQLFieldDefinition fieldDef = type.getFieldDefinition(field.getName());
+				if (fieldDef == null) {
+					return false;
+				}
+				GraphQLType fieldType = GraphQLTypeUtil.unwrapAll(fieldDef.getType());
+				if (fieldType instanceof GraphQLObjectType) {
+					GraphQLObjectType objType = (GraphQLObjectType) fieldType;
+					if (
+						!referenceTypes.contains(objType.getName()) ||
+						!isCacheable(objType, field.getSelectionSet())
+					) {
+						return false;
+					}
+				}
+				else if (!(fieldType instanceof GraphQLScalarType) && !(fieldType instanceof GraphQLEnumType)) {
+					return false;
+				}
+			}
+			else if (selection instanceof InlineFragment) {
+				InlineFragment fragment = (InlineFragment) selection;
+				if (
+					!fragment.getDirectives().isEmpty() || (
+						fragment.getTypeCondition() != null &&
+						!fragment.getTypeCondition().getName().equals(type.getName())
+					) ||
+					!isCacheable(type, fragment.getSelectionSet())
+				) {
+					return false;
+				}
+			}
+			else {
+				// named fragments are defined outside of this selection set
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean hasVariable(Value<?> value) {
+		if (value instanceof VariableReference) {
+			return true;
+		}
+		if (value instanceof ArrayValue) {
+			for (Value<?> item : ((ArrayValue) value).getValues()) {
+				if (hasVariable(item)) {
+					return true;
+				}
+			}
+		}
+		if (value instanceof ObjectValue) {
+			for (ObjectField item : ((ObjectValue) value).getObjectFields()) {
+				if (hasVariable(item.getValue())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import graphql.ErrorType;
+import graphql.GraphQLContext;
+import graphql.GraphQLError;
+import graphql.GraphqlErrorBuilder;
+import graphql.execution.DataFetcherResult;
+import graphql.schema.DataFetchingEnvironment;
+
+import static edu.stanford.hivdb.graphql.Exceptions.RequestTimeoutException;
+
+/**
+ * Deadline of one request, checked cooperatively between sequences,
+ * samples and genes so that remaining work is abandoned once the client
+ * has given up.
+ *
+ * The deadline is read from the {@link GraphQLContext} key
+ * `requestDeadline`, either a {@link RequestDeadline} or an epoch time in
+ * milliseconds. Without one, requests time out after env
+ * `REQUEST_TIMEOUT_MILLIS` (default 0, no deadline) from the first
+ * lookup.
+ */
+public class RequestDeadline {
+
+	public static final String CONTEXT_KEY = "requestDeadline";
+
+	public static final RequestDeadline NONE = new RequestDeadline(Long.MAX_VALUE);
+
+	private static final long DEFAULT_TIMEOUT_MILLIS;
+
+	static {
+		String timeout = System.getenv("REQUEST_TIMEOUT_MILLIS");
+		if (timeout == null) {
+			timeout = "0";
+		}
+		DEFAULT_TIMEOUT_MILLIS = Long.parseLong(timeout);
+	}
+
+	// System.nanoTime() at the deadline, or Long.MAX_VALUE for none
+	private final long deadlineNanos;
+
+	private RequestDeadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	public static RequestDeadline afterMillis(long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			return NONE;
+		}
+		return new RequestDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	public static RequestDeadline atEpochMillis(long epochMillis) {
+		return afterMillis(Math.max(1, epochMillis - System.currentTimeMillis()));
+	}
+
+	public static RequestDeadline of(DataFetchingEnvironment env) {
+		Object context = env.getContext();
+		if (!(context instanceof GraphQLContext)) {
+			return NONE;
+		}
+		GraphQLContext graphQLContext = (GraphQLContext) context;
+		synchronized (graphQLContext) {
+			Object value = graphQLContext.get(CONTEXT_KEY);
+			if (value instanceof RequestDeadline) {
+				return (RequestDeadline) value;
+			}
+			RequestDeadline deadline = (
+				value instanceof Number ?
+				atEpochMillis(((Number) value).longValue()) :
+				afterMillis(DEFAULT_TIMEOUT_MILLIS));
+			graphQLContext.put(CONTEXT_KEY, deadline);
+			return deadline;
+		}
+	}
+
+	public boolean isExpired() {
+		return deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0;
+	}
+
+	/**
+	 * Throws a {@link RequestTimeoutException} if the deadline has passed.
+	 *
+	 * @param item what was about to be computed, e.g. "gene PR"
+	 */
+	public void check(String item) {
+		if (isExpired()) {
+			throw newTimeoutException(item);
+		}
+	}
+
+	public static RuntimeException newTimeoutException(String item) {
+		return new RequestTimeoutException(String.format(
+			"Request deadline exceeded before %s was analyzed.", item));
+	}
+
+	/**
+	 * Returns a future of given future which fails with a
+	 * {@link RequestTimeoutException} at the deadline. The given future
+	 * itself is completed exceptionally too, but the work it depends on is
+	 * not cancelled: batched and scheduled alignments check the deadline
+	 * themselves before they start, and work already started runs on.
+	 */
+	public <T> CompletableFuture<T> bound(CompletableFuture<T> future, String item) {
+		if (deadlineNanos == Long.MAX_VALUE) {
+			return future;
+		}
+		return future
+			.orTimeout(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS)
+			.exceptionally(e -> {
+				Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+				if (cause instanceof TimeoutException) {
+					throw newTimeoutException(item);
+				}
+				throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+			});
+	}
+
+	public static boolean isTimeout(Throwable e) {
+		while (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e instanceof RequestTimeoutException;
+	}
+
+	/**
+	 * Returns a null index-th item of a list field with the error, for an
+	 * item abandoned because the deadline has passed.
+	 */
+	public static <T> DataFetcherResult<T> toTimeoutResult(DataFetchingEnvironment env, int index, Throwable e) {
+		return (
+			new DataFetcherResult.Builder<T>()
+			.error(toItemError(env, index, e))
+			.build()
+		);
+	}
+
+	private static GraphQLError toItemError(DataFetchingEnvironment env, int index, Throwable e) {
+		while (e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		List<Object> path = new ArrayList<>(env.getExecutionStepInfo().getPath().toList());
+		path.add(index);
+		return GraphqlErrorBuilder.newError(env)
+			.path(path)
+			.message(e.getMessage())
+			.errorType(ErrorType.ExecutionAborted)
+			.build();
+	}
+
+}
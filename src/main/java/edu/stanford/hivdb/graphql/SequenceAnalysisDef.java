@@ -36,7 +36,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import edu.stanford.hivdb.drugresistance.GeneDR;
@@ -107,10 +106,25 @@ public class SequenceAnalysisDef {
 		};
 	};
 
+	private static <VirusT extends Virus<VirusT>> List<AlignedGeneSeq<VirusT>> getAlignedGeneSequences(
+		DataFetchingEnvironment env, AlignedSequence<VirusT> alignedSeq, Collection<String> includeGenes
+	) {
+		// shared by sibling fields of the same SequenceAnalysis item
+		AnalysisContext ctx = AnalysisContext.of(env);
+		if (ctx != null) {
+			return ctx.getAlignedGeneSequences(includeGenes);
+		}
+		return alignedSeq.getAlignedGeneSequences(Sets.newLinkedHashSet(includeGenes));
+	}
+
 	private static <VirusT extends Virus<VirusT>> DataFetcher<List<ValidationResult>> makeValidationResultsDataFetcher(VirusT virusIns) {
 		return env -> {
 			AlignedSequence<VirusT> alignedSeq = env.getSource();
 			Collection<String> includeGenes = env.getArgument("includeGenes");
+			AnalysisContext ctx = AnalysisContext.of(env);
+			if (ctx != null) {
+				return ctx.getValidationResults(includeGenes);
+			}
 			return alignedSeq.getValidationResults(Sets.newLinkedHashSet(includeGenes));
 		};
 	}
@@ -119,7 +133,7 @@ public class SequenceAnalysisDef {
 		return env -> {
 			AlignedSequence<VirusT> alignedSeq = env.getSource();
 			Collection<String> includeGenes = env.getArgument("includeGenes");
-			return alignedSeq.getAlignedGeneSequences(Sets.newLinkedHashSet(includeGenes));
+			return getAlignedGeneSequences(env, alignedSeq, includeGenes);
 		};
 	}
 
@@ -128,19 +142,24 @@ public class SequenceAnalysisDef {
 			AlignedSequence<VirusT> alignedSeq = env.getSource();
 			String algName = env.getArgument("algorithm");
 			Collection<String> includeGenes = env.getArgument("includeGenes");
-			List<AlignedGeneSeq<VirusT>> geneSeqs = alignedSeq.getAlignedGeneSequences(Sets.newLinkedHashSet(includeGenes));
-			return Lists.newArrayList(
-				GeneDR.newFromAlignedGeneSeqs(
-					geneSeqs, virusIns.getDrugResistAlgorithm(algName)
-				).values()
-			);
+			AnalysisContext ctx = AnalysisContext.of(env);
+			if (ctx != null) {
+				return ctx.getDrugResistance(virusIns, algName, includeGenes);
+			}
+			List<AlignedGeneSeq<VirusT>> geneSeqs = getAlignedGeneSequences(env, alignedSeq, includeGenes);
+			return GeneDRScorer.scoreAlignedGeneSeqs(
+				geneSeqs, virusIns.getDrugResistAlgorithm(algName), RequestDeadline.of(env));
 		};
 	};
 	
 	private static DataFetcher<List<Map<String, Object>>> boundMutPrevListDataFetcher = env -> {
+		Collection<String> includeGenes = env.getArgument("includeGenes");
+		AnalysisContext ctx = AnalysisContext.of(env);
+		if (ctx != null) {
+			return ctx.getBoundMutationPrevalences(includeGenes);
+		}
 		AlignedSequence<?> alignedSeq = env.getSource();
 		MutationSet<?> mutations = alignedSeq.getMutations();
-		Collection<String> includeGenes = env.getArgument("includeGenes");
 		return getBoundMutationPrevalenceList(mutations, Sets.newHashSet(includeGenes));
 	};
 
@@ -19,6 +19,7 @@
 package edu.stanford.hivdb.graphql;
 
 import graphql.GraphQLException;
+import graphql.execution.DataFetcherResult;
 import graphql.schema.*;
 import graphql.schema.GraphQLCodeRegistry.Builder;
 
@@ -29,11 +30,13 @@ import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
 import static graphql.schema.FieldCoordinates.coordinates;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.Sets;
@@ -69,8 +72,19 @@ import static edu.stanford.hivdb.graphql.SequenceReadsHistogramDef.*;
 import static edu.stanford.hivdb.graphql.SequenceReadsHistogramByCodonReadsDef.*;
 import static edu.stanford.hivdb.graphql.DrugResistanceAlgorithmDef.*;
 import static edu.stanford.hivdb.graphql.DescriptiveStatisticsDef.*;
+import static edu.stanford.hivdb.graphql.PositionRangeDef.*;
 
 public class SequenceReadsAnalysisDef {
+
+	private static int MAXIMUM_CUTOFF_SWEEPS;
+
+	static {
+		String maxSweeps = System.getenv("MAXIMUM_CUTOFF_SWEEPS");
+		if (maxSweeps == null) {
+			maxSweeps = "16";
+		}
+		MAXIMUM_CUTOFF_SWEEPS = Integer.parseInt(maxSweeps);
+	}
 	
 	private static <VirusT extends Virus<VirusT>> DataFetcher<List<BoundGenotype<VirusT>>> makeSubtypesDataFetcher(VirusT virusIns) {
 		return env -> {
@@ -94,11 +108,28 @@ public class SequenceReadsAnalysisDef {
 		};
 	}
 
+	private static <VirusT extends Virus<VirusT>> List<GeneSequenceReads<VirusT>> getAllGeneSequenceReads(
+		DataFetchingEnvironment env, SequenceReads<VirusT> seqReads, Collection<String> includeGenes
+	) {
+		// shared by sibling fields of the same SequenceReadsAnalysis item
+		return AnalysisContext.memoize(
+			env, Arrays.asList("getAllGeneSequenceReads", includeGenes),
+			() -> seqReads.getAllGeneSequenceReads(Sets.newLinkedHashSet(includeGenes)));
+	}
+
+	private static <VirusT extends Virus<VirusT>> List<OneCodonReadsCoverage<VirusT>> getCodonReadsCoverage(
+		DataFetchingEnvironment env, SequenceReads<VirusT> seqReads, Collection<String> includeGenes
+	) {
+		return AnalysisContext.memoize(
+			env, Arrays.asList("getCodonReadsCoverage", includeGenes),
+			() -> seqReads.getCodonReadsCoverage(includeGenes));
+	}
+
 	private static <VirusT extends Virus<VirusT>> DataFetcher<List<GeneSequenceReads<VirusT>>> makeAllGeneSequenceReadsDataFetcher(VirusT virusIns) {
 		return env -> {
 			SequenceReads<VirusT> seqReads = env.getSource();
 			Collection<String> includeGenes = env.getArgument("includeGenes");
-			return seqReads.getAllGeneSequenceReads(Sets.newLinkedHashSet(includeGenes));
+			return getAllGeneSequenceReads(env, seqReads, includeGenes);
 		};
 	}
 
@@ -107,11 +138,16 @@ public class SequenceReadsAnalysisDef {
 			SequenceReads<VirusT> seqReads = env.getSource();
 			String algName = env.getArgument("algorithm");
 			Collection<String> includeGenes = env.getArgument("includeGenes");
-			List<GeneSequenceReads<VirusT>> allGeneSeqReads = seqReads.getAllGeneSequenceReads(Sets.newLinkedHashSet(includeGenes));
-			return new ArrayList<>(GeneDR.newFromGeneSequenceReads(
+			AnalysisContext ctx = AnalysisContext.of(env);
+			if (ctx != null) {
+				return ctx.getDrugResistance(virusIns, algName, includeGenes);
+			}
+			List<GeneSequenceReads<VirusT>> allGeneSeqReads = getAllGeneSequenceReads(env, seqReads, includeGenes);
+			return GeneDRScorer.scoreGeneSequenceReads(
 				allGeneSeqReads,
-				virusIns.getDrugResistAlgorithm(algName)
-			).values());
+				virusIns.getDrugResistAlgorithm(algName),
+				RequestDeadline.of(env)
+			);
 		};
 	};
 
@@ -119,7 +155,14 @@ public class SequenceReadsAnalysisDef {
 		return env -> {
 			SequenceReads<VirusT> sr = env.getSource();
 			Collection<String> includeGenes = env.getArgument("includeGenes");
-			return sr.getCodonReadsCoverage(includeGenes);
+			List<OneCodonReadsCoverage<VirusT>> coverage = getCodonReadsCoverage(env, sr, includeGenes);
+			if (!hasPositionRange(env)) {
+				return coverage;
+			}
+			GroupedPositionIndex<OneCodonReadsCoverage<VirusT>> index = SourceMemoizer.memoize(
+				coverage, GroupedPositionIndex.class,
+				() -> new GroupedPositionIndex<>(coverage, c -> c.getGene(), c -> c.getPosition()));
+			return index.slice(getFromPosition(env), getToPosition(env));
 		};
 	};
 	
@@ -128,15 +171,14 @@ public class SequenceReadsAnalysisDef {
 		SequenceReads<?> sr = env.getSource();
 		Collection<String> includeGenes = env.getArgument("includeGenes");
 		return Json.dumpsUgly(
-			sr
-			.getCodonReadsCoverage(includeGenes)
+			getCodonReadsCoverage(env, sr, includeGenes)
 			.stream()
 			.map(rc -> rc.extMap())
 			.collect(Collectors.toList()));
 	};
 	
 	
-	public static <VirusT extends Virus<VirusT>> SequenceReads<VirusT> toSequenceReadsList(Map<String, Object> input) {
+	public static <VirusT extends Virus<VirusT>> ParsedSequenceReads<VirusT> parseSequenceReadsInput(Map<String, Object> input) {
 		String name = (String) input.get("name");
 		if (name == null) {
 			throw new GraphQLException("`name` is a required field but doesn't have value");
@@ -146,14 +188,16 @@ public class SequenceReadsAnalysisDef {
 		if (strain == null) {
 		 throw new GraphQLException("`strain` is a required field but doesn't have value");
 		}
-		List<PositionCodonReads<VirusT>> allReads = (
-			((List<?>) input.get("allReads"))
+		List<?> inputAllReads = (List<?>) input.get("allReads");
+		if (inputAllReads == null) {
+			throw new GraphQLException("`allReads` is a required field but doesn't have value");
+		}
+		// shared by all SequenceReads built from this input
+		List<PositionCodonReads<VirusT>> allReads = Collections.unmodifiableList(
+			inputAllReads
 			.stream()
 			.map(pcr -> toPositionCodonReads(strain, (Map<?, ?>) pcr))
 			.collect(Collectors.toList()));
-		if (allReads == null) {
-			throw new GraphQLException("`allReads` is a required field but doesn't have value");
-		}
 		
 		List<?> inputUntransRegions = (List<?>) input.get("untranslatedRegions");
 		List<UntranslatedRegion> untransRegions = (
@@ -168,7 +212,7 @@ public class SequenceReadsAnalysisDef {
 			.collect(Collectors.toList())
 		);
 		
-		return SequenceReads.fromCodonReadsTable(
+		return new ParsedSequenceReads<>(
 			(String) input.get("name"),
 			strain,
 			allReads,
@@ -180,6 +224,94 @@ public class SequenceReadsAnalysisDef {
 		);
 	}
 
+	public static <VirusT extends Virus<VirusT>> SequenceReads<VirusT> toSequenceReadsList(Map<String, Object> input) {
+		ParsedSequenceReads<VirusT> parsed = parseSequenceReadsInput(input);
+		return parsed.toSequenceReads();
+	}
+
+	private static <VirusT extends Virus<VirusT>> DataFetcher<CompletableFuture<List<DataFetcherResult<SequenceReads<VirusT>>>>> makeCutoffSweepsDataFetcher(VirusT virusIns) {
+		return env -> {
+			// sweep items have no parsed input, so sweeps can't be nested
+			AnalysisContext ctx = AnalysisContext.of(env);
+			if (ctx == null || !(ctx.getInput() instanceof ParsedSequenceReads)) {
+				throw new GraphQLException(
+					"`cutoffSweeps` is only available on the top-level analysis of a sequence reads");
+			}
+			@SuppressWarnings("unchecked")
+			ParsedSequenceReads<VirusT> parsed = (ParsedSequenceReads<VirusT>) ctx.getInput();
+			List<Map<String, Object>> cutoffs = env.getArgument("cutoffs");
+			if (cutoffs.size() > MAXIMUM_CUTOFF_SWEEPS) {
+				throw new GraphQLException(String.format(
+					"Too many cutoff combinations submitted in one request. (%d > %d)",
+					cutoffs.size(), MAXIMUM_CUTOFF_SWEEPS));
+			}
+			// the codon reads table is reused; only the cutoffs are re-applied,
+			// one task per cutoff on the stage pool
+			RequestDeadline deadline = RequestDeadline.of(env);
+			AnalysisPlan plan = AnalysisPlan.fromSelectionSet(virusIns, env.getSelectionSet()).withDeadline(deadline);
+			List<CompletableFuture<AnalysisContext>> contextFutures = new ArrayList<>();
+			for (Map<String, Object> cutoff : cutoffs) {
+				// cutoffs not started by the deadline are left null
+				contextFutures.add(CompletableFuture.supplyAsync(
+					() -> deadline.isExpired() ? null : new AnalysisContext(parsed.toSequenceReads(cutoff), null, plan),
+					AnalysisPlan.getStageExecutor()));
+			}
+			return CompletableFuture
+				.allOf(contextFutures.toArray(new CompletableFuture<?>[0]))
+				.thenApply(v -> {
+					List<AnalysisContext> contexts = (
+						contextFutures.stream()
+						.map(CompletableFuture::join)
+						.collect(Collectors.toList())
+					);
+					plan.prepare(contexts.stream().filter(c -> c != null).collect(Collectors.toList()));
+					List<DataFetcherResult<SequenceReads<VirusT>>> results = new ArrayList<>();
+					for (AnalysisContext sweepCtx : contexts) {
+						if (sweepCtx == null) {
+							results.add(RequestDeadline.toTimeoutResult(
+								env, results.size(),
+								RequestDeadline.newTimeoutException("cutoff sweep of " + parsed.getName())));
+							continue;
+						}
+						@SuppressWarnings("unchecked")
+						SequenceReads<VirusT> seqReads = (SequenceReads<VirusT>) sweepCtx.getSource();
+						results.add(
+							new DataFetcherResult.Builder<SequenceReads<VirusT>>()
+							.data(seqReads)
+							.localContext(sweepCtx)
+							.build()
+						);
+					}
+					return results;
+				});
+		};
+	}
+
+	public static GraphQLInputObjectType iSequenceReadsCutoff = (
+		newInputObject()
+		.name("SequenceReadsCutoffInput")
+		.description(
+			"One combination of cutoffs. Absent cutoffs fall back to " +
+			"the values specified in `SequenceReadsInput`.")
+		.field(field -> field
+			.type(GraphQLFloat)
+			.name("maxMixtureRate")
+			.description("The maximum allowed mixture percentage cutoff."))
+		.field(field -> field
+			.type(GraphQLFloat)
+			.name("minPrevalence")
+			.description("The minimal prevalence cutoff to apply on each **codon**."))
+		.field(field -> field
+			.type(GraphQLLong)
+			.name("minCodonReads")
+			.description("The minimal read depth for **codons**."))
+		.field(field -> field
+			.type(GraphQLLong)
+			.name("minPositionReads")
+			.description("The minimal read depth for **positions**."))
+		.build()
+	);
+
 	public static GraphQLInputObjectType iUntranslatedRegion = (
 		newInputObject()
 		.name("UntranslatedRegionInput")
@@ -347,9 +479,13 @@ public class SequenceReadsAnalysisDef {
 		.build();
 
 	private static DataFetcher<List<Map<String, Object>>> boundMutPrevListDataFetcher = env -> {
+		Collection<String> includeGenes = env.getArgument("includeGenes");
+		AnalysisContext ctx = AnalysisContext.of(env);
+		if (ctx != null) {
+			return ctx.getBoundMutationPrevalences(includeGenes);
+		}
 		SequenceReads<?> seqReads = env.getSource();
 		MutationSet<?> mutations = seqReads.getMutations();
-		Collection<String> includeGenes = env.getArgument("includeGenes");
 		return getBoundMutationPrevalenceList(mutations, Sets.newHashSet(includeGenes));
 	};
 
@@ -417,6 +553,10 @@ public class SequenceReadsAnalysisDef {
 				coordinates("SequenceReadsAnalysis", "mutationPrevalences"),
 				boundMutPrevListDataFetcher
 			)
+			.dataFetcher(
+				coordinates("SequenceReadsAnalysis", "cutoffSweeps"),
+				makeCutoffSweepsDataFetcher(virusIns)
+			)
 			.dataFetchers(oneCodonReadsCoverageCodeRegistry)
 			.dataFetchers(cutoffKeyPointCodRegistry)
 			.dataFetchers(makeGeneSequenceReadsCodeRegistry(virusIns));
@@ -557,7 +697,7 @@ public class SequenceReadsAnalysisDef {
 					.type(oDescriptiveStatistics)
 					.description("Descriptive statistics of read depth for drug resistance positions.")
 				)
-				.field(field -> field
+				.field(field -> positionRangeArgs.apply(field)
 					.name("codonReadsCoverage")
 					.type(new GraphQLList(oOneCodonReadsCoverage.get(virusName)))
 					.argument(arg -> arg
@@ -588,6 +728,19 @@ public class SequenceReadsAnalysisDef {
 						"`maxMixtureRate` and `minPrevalence`."
 					)
 				)
+				.field(field -> field
+					.type(new GraphQLList(new GraphQLTypeReference("SequenceReadsAnalysis")))
+					.name("cutoffSweeps")
+					.argument(arg -> arg
+						.type(new GraphQLNonNull(new GraphQLList(iSequenceReadsCutoff)))
+						.name("cutoffs")
+						.description("Cutoff combinations to be applied."))
+					.description(
+						"Analyses of the same codon reads with each of the given " +
+						"cutoff combinations. The codon reads are not re-submitted or " +
+						"re-parsed for each combination. Can not be nested in itself."
+					)
+				)
 				.field(field -> field
 					.type(GraphQLString)
 					.name("assembledConsensus")
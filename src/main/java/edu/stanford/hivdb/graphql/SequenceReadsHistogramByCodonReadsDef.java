@@ -14,20 +14,54 @@ import static edu.stanford.hivdb.graphql.SequenceReadsHistogramDef.enumAggregati
 import static edu.stanford.hivdb.seqreads.SequenceReadsHistogram.AggregationOption;
 import static edu.stanford.hivdb.seqreads.SequenceReadsHistogramByCodonReads.WithSequenceReadsHistogramByCodonReads;
 
-import edu.stanford.hivdb.seqreads.SequenceReadsHistogramByCodonReads;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogramByCodonReads.HistogramByCodonReadsBin;
+import edu.stanford.hivdb.graphql.SequenceReadsHistogramIndex.SiteType;
 
 
 public class SequenceReadsHistogramByCodonReadsDef {
 
 	public static GraphQLObjectType oSeqReadsHistogramByCodonReadsBin;
 
-	public static DataFetcher<SequenceReadsHistogramByCodonReads<?>> seqReadsHistogramByCodonReadsDataFetcher = env -> {
+	/**
+	 * Histogram answered by the {@link SequenceReadsHistogramIndex} of its
+	 * source.
+	 */
+	public static class IndexedHistogramByCodonReads {
+
+		private final SequenceReadsHistogramIndex index;
+		private final long[] cutoffs;
+		private final AggregationOption aggBy;
+
+		private IndexedHistogramByCodonReads(
+			WithSequenceReadsHistogramByCodonReads<?> seqReads,
+			long[] cutoffs, AggregationOption aggBy
+		) {
+			this.index = SequenceReadsHistogramIndex.of(seqReads);
+			this.cutoffs = cutoffs;
+			this.aggBy = aggBy;
+		}
+
+		private List<HistogramByCodonReadsBin> getSites(SiteType type) {
+			return index.getSitesByCodonReads(type, cutoffs, aggBy);
+		}
+
+		public List<HistogramByCodonReadsBin> getUsualSites() { return getSites(SiteType.USUAL); }
+		public List<HistogramByCodonReadsBin> getDrmSites() { return getSites(SiteType.DRM); }
+		public List<HistogramByCodonReadsBin> getUnusualSites() { return getSites(SiteType.UNUSUAL); }
+		public List<HistogramByCodonReadsBin> getUnusualApobecSites() { return getSites(SiteType.UNUSUAL_APOBEC); }
+		public List<HistogramByCodonReadsBin> getUnusualNonApobecSites() { return getSites(SiteType.UNUSUAL_NON_APOBEC); }
+		public List<HistogramByCodonReadsBin> getApobecSites() { return getSites(SiteType.APOBEC); }
+		public List<HistogramByCodonReadsBin> getApobecDrmSites() { return getSites(SiteType.APOBEC_DRM); }
+		public List<HistogramByCodonReadsBin> getStopCodonSites() { return getSites(SiteType.STOP_CODON); }
+		public Integer getNumPositions() { return index.getNumPositions(); }
+	}
+
+	public static DataFetcher<IndexedHistogramByCodonReads> seqReadsHistogramByCodonReadsDataFetcher = env -> {
 		WithSequenceReadsHistogramByCodonReads<?> seqReads = env.getSource();
-		List<Double> codonReadsCutoffs = env.getArgument("codonReadsCutoffs");
+		List<Number> codonReadsCutoffs = env.getArgument("codonReadsCutoffs");
 		AggregationOption aggBy = env.getArgument("aggregatesBy");
-		return seqReads.getHistogramByCodonReads(
-			codonReadsCutoffs.toArray(new Long[codonReadsCutoffs.size()]),
-			aggBy);
+		long[] cutoffs = codonReadsCutoffs.stream().mapToLong(Number::longValue).toArray();
+		return new IndexedHistogramByCodonReads(seqReads, cutoffs, aggBy);
 	};
 	
 	static {		
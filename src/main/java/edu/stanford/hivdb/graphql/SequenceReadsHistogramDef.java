@@ -12,17 +12,68 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.function.UnaryOperator;
 
-import edu.stanford.hivdb.seqreads.SequenceReadsHistogram;
 import edu.stanford.hivdb.seqreads.SequenceReadsHistogram.AggregationOption;
 import edu.stanford.hivdb.seqreads.SequenceReadsHistogram.HistogramBin;
 import edu.stanford.hivdb.seqreads.SequenceReadsHistogram.WithSequenceReadsHistogram;
+import edu.stanford.hivdb.graphql.SequenceReadsHistogramIndex.SiteType;
 
 public class SequenceReadsHistogramDef {
 
 	public static GraphQLEnumType enumAggregationOption;
 	public static GraphQLObjectType oSeqReadsHistogramBin;
 
-	public static DataFetcher<SequenceReadsHistogram<?>> seqReadsHistogramDataFetcher = env -> {
+	/**
+	 * Histogram answered by the {@link SequenceReadsHistogramIndex} of its
+	 * source. Only `usualSitesBy` still needs the core histogram.
+	 */
+	public static class IndexedHistogram {
+
+		private final WithSequenceReadsHistogram<?> seqReads;
+		private final SequenceReadsHistogramIndex index;
+		private final double lowerLimit;
+		private final double upperLimit;
+		private final double[] binTicks;
+		private final boolean cumulative;
+		private final AggregationOption aggBy;
+
+		private IndexedHistogram(
+			WithSequenceReadsHistogram<?> seqReads, double lowerLimit,
+			double upperLimit, double[] binTicks, boolean cumulative,
+			AggregationOption aggBy
+		) {
+			this.seqReads = seqReads;
+			this.index = SequenceReadsHistogramIndex.of(seqReads);
+			this.lowerLimit = lowerLimit;
+			this.upperLimit = upperLimit;
+			this.binTicks = binTicks;
+			this.cumulative = cumulative;
+			this.aggBy = aggBy;
+		}
+
+		private List<HistogramBin> getSites(SiteType type) {
+			return index.getSites(type, lowerLimit, upperLimit, binTicks, cumulative, aggBy);
+		}
+
+		public List<HistogramBin> getUsualSites() { return getSites(SiteType.USUAL); }
+		public List<HistogramBin> getDrmSites() { return getSites(SiteType.DRM); }
+		public List<HistogramBin> getUnusualSites() { return getSites(SiteType.UNUSUAL); }
+		public List<HistogramBin> getUnusualApobecSites() { return getSites(SiteType.UNUSUAL_APOBEC); }
+		public List<HistogramBin> getUnusualNonApobecSites() { return getSites(SiteType.UNUSUAL_NON_APOBEC); }
+		public List<HistogramBin> getApobecSites() { return getSites(SiteType.APOBEC); }
+		public List<HistogramBin> getApobecDrmSites() { return getSites(SiteType.APOBEC_DRM); }
+		public List<HistogramBin> getStopCodonSites() { return getSites(SiteType.STOP_CODON); }
+		public Integer getNumPositions() { return index.getNumPositions(); }
+
+		public List<HistogramBin> getUsualSites(String treatment, String subtype) {
+			// usual by treatment/subtype depends on prevalence data the index doesn't carry
+			Double[] ticks = Arrays.stream(binTicks).boxed().toArray(Double[]::new);
+			return seqReads
+				.getHistogram(lowerLimit, upperLimit, ticks, cumulative, aggBy)
+				.getUsualSites(treatment, subtype);
+		}
+	}
+
+	public static DataFetcher<IndexedHistogram> seqReadsHistogramDataFetcher = env -> {
 		WithSequenceReadsHistogram<?> seqReads = env.getSource();
 		double lowerLimit = env.getArgument("pcntLowerLimit");
 		double upperLimit = env.getArgument("pcntUpperLimit");
@@ -30,26 +81,23 @@ public class SequenceReadsHistogramDef {
 		List<Double> binTicks = env.getArgument("binTicks");
 		boolean cumulative = env.getArgument("cumulative");
 		AggregationOption aggBy = env.getArgument("aggregatesBy");
+		double[] ticks;
 		if (numBins != null) {
-			return seqReads.getHistogram(
-				lowerLimit, upperLimit, numBins,
-				cumulative, aggBy);
+			ticks = SequenceReadsHistogramIndex.toBinTicks(lowerLimit, upperLimit, numBins);
 		}
 		else {
-			return seqReads.getHistogram(
-				lowerLimit, upperLimit,
-				binTicks.toArray(new Double[binTicks.size()]),
-				cumulative, aggBy);
+			ticks = binTicks.stream().mapToDouble(Double::doubleValue).toArray();
 		}
+		return new IndexedHistogram(seqReads, lowerLimit, upperLimit, ticks, cumulative, aggBy);
 	};
-	
+
 	private static DataFetcher<List<HistogramBin>> seqReadsHistogramUsualSitesByDataFetcher = env -> {
-		SequenceReadsHistogram<?> histogram = env.getSource();
+		IndexedHistogram histogram = env.getSource();
 		String treatment = env.getArgument("treatment");
 		String subtype = env.getArgument("subtype");
 		return histogram.getUsualSites(treatment, subtype);
 	};
-	
+
 	public static GraphQLCodeRegistry seqReadsHistogramCodeRegistry = newCodeRegistry()
 		.dataFetcher(
 			coordinates("SequenceReadsHistogram", "usualSitesBy"),
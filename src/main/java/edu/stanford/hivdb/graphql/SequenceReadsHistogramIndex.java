@@ -0,0 +1,410 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import edu.stanford.hivdb.mutations.CodonReads;
+import edu.stanford.hivdb.mutations.PositionCodonReads;
+import edu.stanford.hivdb.seqreads.GeneSequenceReads;
+import edu.stanford.hivdb.seqreads.SequenceReads;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogram.AggregationOption;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogram.HistogramBin;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogramByCodonReads.HistogramByCodonReadsBin;
+
+/**
+ * Per-source index of mutated codons, used to answer every `histogram`
+ * and `histogramByCodonReads` variant of a sequence reads by binary search.
+ *
+ * Mutated codons of all genes are sorted by proportion once. Each entry
+ * keeps its site flags and its site id under every aggregation option.
+ * Codon counts are prefix sums; amino acid and position counts are
+ * distinct site ids within the binary-searched window.
+ *
+ * For read depth cutoffs, the highest codon reads of every site is kept
+ * sorted per site type and aggregation option, so a list of `k` cutoffs
+ * takes `k` binary searches.
+ *
+ * An index only holds primitive arrays, never its source. Indexes are
+ * cached per source (weak key) and bounded by their estimated size (env
+ * `HISTOGRAM_INDEX_CACHE_MAXIMUM_BYTES`).
+ */
+public class SequenceReadsHistogramIndex {
+
+	protected static final int FLAG_DRM = 1;
+	protected static final int FLAG_UNUSUAL = 2;
+	protected static final int FLAG_APOBEC = 4;
+	protected static final int FLAG_APOBEC_DRM = 8;
+	protected static final int FLAG_STOP_CODON = 16;
+
+	protected static enum SiteType {
+		USUAL(FLAG_UNUSUAL, 0),
+		DRM(FLAG_DRM, FLAG_DRM),
+		UNUSUAL(FLAG_UNUSUAL, FLAG_UNUSUAL),
+		UNUSUAL_APOBEC(FLAG_UNUSUAL | FLAG_APOBEC, FLAG_UNUSUAL | FLAG_APOBEC),
+		UNUSUAL_NON_APOBEC(FLAG_UNUSUAL | FLAG_APOBEC, FLAG_UNUSUAL),
+		APOBEC(FLAG_APOBEC, FLAG_APOBEC),
+		APOBEC_DRM(FLAG_APOBEC_DRM, FLAG_APOBEC_DRM),
+		STOP_CODON(FLAG_STOP_CODON, FLAG_STOP_CODON);
+
+		private final int mask;
+		private final int value;
+
+		private SiteType(int mask, int value) {
+			this.mask = mask;
+			this.value = value;
+		}
+
+		protected boolean matches(int flags) {
+			return (flags & mask) == value;
+		}
+	}
+
+	private static final long MAXIMUM_CACHE_BYTES;
+	private static final Cache<Object, SequenceReadsHistogramIndex> indexes;
+
+	static {
+		String maxBytes = System.getenv("HISTOGRAM_INDEX_CACHE_MAXIMUM_BYTES");
+		if (maxBytes == null) {
+			maxBytes = "67108864";
+		}
+		MAXIMUM_CACHE_BYTES = Long.parseLong(maxBytes);
+
+		indexes = CacheBuilder.newBuilder()
+			.weakKeys()
+			.maximumWeight(MAXIMUM_CACHE_BYTES)
+			.weigher((Object source, SequenceReadsHistogramIndex index) -> index.estimateRetainedBytes())
+			.build();
+	}
+
+	/**
+	 * Returns the index of a {@link SequenceReads} or a {@link GeneSequenceReads}.
+	 */
+	public static SequenceReadsHistogramIndex of(Object source) {
+		return indexes.asMap().computeIfAbsent(source, SequenceReadsHistogramIndex::build);
+	}
+
+	private static SequenceReadsHistogramIndex build(Object source) {
+		List<? extends GeneSequenceReads<?>> allGeneSeqReads;
+		if (source instanceof SequenceReads) {
+			allGeneSeqReads = ((SequenceReads<?>) source).getAllGeneSequenceReads();
+		}
+		else {
+			allGeneSeqReads = Collections.singletonList((GeneSequenceReads<?>) source);
+		}
+		Builder builder = new Builder();
+		for (GeneSequenceReads<?> geneSeqReads : allGeneSeqReads) {
+			builder.addNumPositions(geneSeqReads.getNumPositions());
+			for (PositionCodonReads<?> pcr : geneSeqReads.getAllPositionCodonReads()) {
+				for (CodonReads<?> cr : pcr.getCodonReads(true, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY)) {
+					builder.add(
+						cr.getGene(), cr.getPosition(), cr.getCodon(),
+						cr.getAminoAcid(), cr.getProportion(), cr.getReads(),
+						getFlags(cr));
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	private static int getFlags(CodonReads<?> cr) {
+		int flags = 0;
+		if (cr.isDRM()) {
+			flags |= FLAG_DRM;
+		}
+		if (cr.isUnusual()) {
+			flags |= FLAG_UNUSUAL;
+		}
+		if (cr.isApobecMutation()) {
+			flags |= FLAG_APOBEC;
+		}
+		if (cr.isApobecDRM()) {
+			flags |= FLAG_APOBEC_DRM;
+		}
+		if (Character.valueOf('*').equals(cr.getAminoAcid())) {
+			flags |= FLAG_STOP_CODON;
+		}
+		return flags;
+	}
+
+	protected static class Builder {
+
+		private final List<Object[]> entries = new ArrayList<>();
+		private final List<Map<List<Object>, Integer>> siteIds = new ArrayList<>();
+		private int numPositions = 0;
+
+		protected Builder() {
+			for (int i = 0; i < AggregationOption.values().length; i ++) {
+				siteIds.add(new HashMap<>());
+			}
+		}
+
+		protected Builder addNumPositions(int numPositions) {
+			this.numPositions += numPositions;
+			return this;
+		}
+
+		protected Builder add(
+			Object gene, long position, String codon, Character aminoAcid,
+			double proportion, long reads, int flags
+		) {
+			int[] ids = new int[AggregationOption.values().length];
+			for (AggregationOption aggBy : AggregationOption.values()) {
+				List<Object> site;
+				switch (aggBy) {
+					case Codon:
+						site = Arrays.asList(gene, position, codon);
+						break;
+					case AminoAcid:
+						site = Arrays.asList(gene, position, aminoAcid);
+						break;
+					default:
+						site = Arrays.asList(gene, position);
+						break;
+				}
+				Map<List<Object>, Integer> siteIdMap = siteIds.get(aggBy.ordinal());
+				ids[aggBy.ordinal()] = siteIdMap.computeIfAbsent(site, k -> siteIdMap.size());
+			}
+			entries.add(new Object[] {proportion, flags, ids, reads});
+			return this;
+		}
+
+		protected SequenceReadsHistogramIndex build() {
+			entries.sort(Comparator.comparingDouble(e -> (Double) e[0]));
+			return new SequenceReadsHistogramIndex(this);
+		}
+	}
+
+	private final int numPositions;
+	private final double[] proportions;
+	private final byte[] flags;
+	private final int[][] siteIds;
+	private final int[] numSites;
+	private final int[][] prefixCounts;
+	private final long[][][] siteMaxReads;
+
+	private SequenceReadsHistogramIndex(Builder builder) {
+		int size = builder.entries.size();
+		int numAggOptions = AggregationOption.values().length;
+		numPositions = builder.numPositions;
+		proportions = new double[size];
+		flags = new byte[size];
+		siteIds = new int[numAggOptions][size];
+		numSites = new int[numAggOptions];
+		for (int i = 0; i < size; i ++) {
+			Object[] entry = builder.entries.get(i);
+			proportions[i] = (Double) entry[0];
+			flags[i] = (byte) (int) (Integer) entry[1];
+			int[] ids = (int[]) entry[2];
+			for (int agg = 0; agg < numAggOptions; agg ++) {
+				siteIds[agg][i] = ids[agg];
+			}
+		}
+		for (int agg = 0; agg < numAggOptions; agg ++) {
+			numSites[agg] = builder.siteIds.get(agg).size();
+		}
+		long[] reads = new long[size];
+		for (int i = 0; i < size; i ++) {
+			reads[i] = (Long) builder.entries.get(i)[3];
+		}
+		siteMaxReads = new long[numAggOptions][][];
+		for (int agg = 0; agg < numAggOptions; agg ++) {
+			siteMaxReads[agg] = toSiteMaxReads(siteIds[agg], numSites[agg], reads);
+		}
+		prefixCounts = new int[SiteType.values().length][size + 1];
+		for (SiteType type : SiteType.values()) {
+			int[] prefix = prefixCounts[type.ordinal()];
+			for (int i = 0; i < size; i ++) {
+				prefix[i + 1] = prefix[i] + (type.matches(flags[i]) ? 1 : 0);
+			}
+		}
+	}
+
+	// sorted highest reads of matching sites, per site type
+	private long[][] toSiteMaxReads(int[] ids, int numSites, long[] reads) {
+		long[][] result = new long[SiteType.values().length][];
+		long[] maxReads = new long[numSites];
+		for (SiteType type : SiteType.values()) {
+			Arrays.fill(maxReads, -1);
+			for (int i = 0; i < ids.length; i ++) {
+				if (type.matches(flags[i]) && reads[i] > maxReads[ids[i]]) {
+					maxReads[ids[i]] = reads[i];
+				}
+			}
+			result[type.ordinal()] = Arrays.stream(maxReads).filter(r -> r >= 0).sorted().toArray();
+		}
+		return result;
+	}
+
+	protected int estimateRetainedBytes() {
+		int size = proportions.length;
+		long siteReadsBytes = 0;
+		for (long[][] byType : siteMaxReads) {
+			for (long[] sorted : byType) {
+				siteReadsBytes += Long.BYTES * sorted.length;
+			}
+		}
+		return (int) Math.min(Integer.MAX_VALUE, 256 + siteReadsBytes + (long) size * (
+			Double.BYTES + 1 +
+			Integer.BYTES * (siteIds.length + prefixCounts.length)));
+	}
+
+	public int getNumPositions() {
+		return numPositions;
+	}
+
+	/**
+	 * Returns ticks of `numBins` equal-width bins between the limits.
+	 */
+	public static double[] toBinTicks(double lowerLimit, double upperLimit, int numBins) {
+		double[] ticks = new double[numBins];
+		for (int i = 0; i < numBins; i ++) {
+			ticks[i] = lowerLimit + (upperLimit - lowerLimit) * i / numBins;
+		}
+		return ticks;
+	}
+
+	/**
+	 * Counts sites of given type per bin.
+	 *
+	 * Bin `i` covers proportions in [binTicks[i], binTicks[i + 1]); the last
+	 * bin ends at `upperLimit` inclusively. Only proportions within the
+	 * limits are counted. A cumulative bin covers [binTicks[i], upperLimit].
+	 */
+	public List<HistogramBin> getSites(
+		SiteType type, double lowerLimit, double upperLimit,
+		double[] binTicks, boolean cumulative, AggregationOption aggBy
+	) {
+		double[] ticks = binTicks.clone();
+		Arrays.sort(ticks);
+		int numBins = ticks.length;
+		int stop = firstHigherThan(proportions, upperLimit);
+		int[] starts = new int[numBins + 1];
+		for (int i = 0; i < numBins; i ++) {
+			starts[i] = Math.min(firstNotLowerThan(proportions, Math.max(ticks[i], lowerLimit)), stop);
+		}
+		starts[numBins] = stop;
+
+		int[] counts = new int[numBins];
+		if (aggBy == AggregationOption.Codon) {
+			int[] prefix = prefixCounts[type.ordinal()];
+			for (int i = 0; i < numBins; i ++) {
+				int binStop = cumulative ? stop : Math.max(starts[i], starts[i + 1]);
+				counts[i] = prefix[binStop] - prefix[starts[i]];
+			}
+		}
+		else {
+			int[] ids = siteIds[aggBy.ordinal()];
+			int[] marks = new int[numSites[aggBy.ordinal()]];
+			int distinct = 0;
+			// walk bins from the top so cumulative counts share one pass
+			for (int i = numBins - 1; i >= 0; i --) {
+				int binStop = Math.max(starts[i], starts[i + 1]);
+				int mark = cumulative ? 1 : i + 1;
+				if (!cumulative) {
+					distinct = 0;
+				}
+				for (int j = starts[i]; j < binStop; j ++) {
+					if (type.matches(flags[j]) && marks[ids[j]] != mark) {
+						marks[ids[j]] = mark;
+						distinct ++;
+					}
+				}
+				counts[i] = distinct;
+			}
+		}
+
+		List<HistogramBin> bins = new ArrayList<>(numBins);
+		for (int i = 0; i < numBins; i ++) {
+			double percentStop = i + 1 < numBins ? ticks[i + 1] : upperLimit;
+			bins.add(new HistogramBin(ticks[i], percentStop, counts[i]));
+		}
+		return bins;
+	}
+
+	/**
+	 * Counts sites of given type which have a mutated codon with at least
+	 * `cutoff` reads, for every cutoff.
+	 */
+	public List<HistogramByCodonReadsBin> getSitesByCodonReads(
+		SiteType type, long[] cutoffs, AggregationOption aggBy
+	) {
+		long[] sorted = siteMaxReads[aggBy.ordinal()][type.ordinal()];
+		List<HistogramByCodonReadsBin> bins = new ArrayList<>(cutoffs.length);
+		for (long cutoff : cutoffs) {
+			bins.add(new HistogramByCodonReadsBin(cutoff, sorted.length - firstNotLowerThan(sorted, cutoff)));
+		}
+		return bins;
+	}
+
+	// index of the first element which is not lower than the given value
+	protected static int firstNotLowerThan(long[] sorted, long value) {
+		int lo = 0, hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < value) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// index of the first element which is not lower than the given value
+	protected static int firstNotLowerThan(double[] sorted, double value) {
+		int lo = 0, hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < value) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// index of the first element which is higher than the given value
+	protected static int firstHigherThan(double[] sorted, double value) {
+		int lo = 0, hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] <= value) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+}
@@ -18,6 +18,11 @@
 
 package edu.stanford.hivdb.graphql;
 
+import graphql.GraphQL;
+import graphql.GraphQLContext;
+import graphql.execution.DataFetcherResult;
+import graphql.execution.instrumentation.ChainedInstrumentation;
+import graphql.execution.instrumentation.Instrumentation;
 import graphql.schema.*;
 import graphql.schema.GraphQLCodeRegistry.Builder;
 
@@ -32,12 +37,14 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
@@ -45,11 +52,9 @@ import org.apache.commons.lang3.tuple.Triple;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.seqreads.SequenceReads;
 import edu.stanford.hivdb.sequences.AlignedSequence;
-import edu.stanford.hivdb.sequences.Aligner;
 import edu.stanford.hivdb.sequences.Sequence;
 import edu.stanford.hivdb.utilities.SimpleMemoizer;
 import edu.stanford.hivdb.viruses.Gene;
-import edu.stanford.hivdb.viruses.Strain;
 import edu.stanford.hivdb.viruses.Virus;
 
 import static edu.stanford.hivdb.graphql.ExtGraphQL.ExtPropertyDataFetcher;
@@ -82,35 +87,183 @@ public class SierraSchema {
 		MAXIMUM_SEQUENCES_PER_PAYLOAD = Integer.parseInt(maxSeqs);
 	}
 
-	private static <VirusT extends Virus<VirusT>> DataFetcher<List<AlignedSequence<VirusT>>> makeSequenceAnalysisDataFetcher(VirusT virusIns) {
+	private static void checkNumSequences(List<?> seqs) {
+		if (seqs.size() > MAXIMUM_SEQUENCES_PER_PAYLOAD) {
+			throw new NumSequencesLimitExceededException(String.format(
+				"Too many sequences submitted in one request. (%d > %d)",
+				seqs.size(), MAXIMUM_SEQUENCES_PER_PAYLOAD));
+		}
+	}
+
+	private static <VirusT extends Virus<VirusT>> DataFetcherResult<AlignedSequence<VirusT>> toSequenceAnalysisResult(
+		AlignedSequence<VirusT> alignedSeq, Sequence seq, AnalysisPlan plan
+	) {
+		AnalysisContext ctx = new AnalysisContext(alignedSeq, seq, plan);
+		plan.prepare(ctx);
+		return (
+			new DataFetcherResult.Builder<AlignedSequence<VirusT>>()
+			.data(alignedSeq)
+			.localContext(ctx)
+			.build()
+		);
+	}
+
+	private static <VirusT extends Virus<VirusT>> List<DataFetcherResult<AlignedSequence<VirusT>>> toSequenceAnalysisResults(
+		VirusT virusIns, DataFetchingEnvironment env, List<Sequence> seqList, List<AlignedSequence<VirusT>> alignedSeqs
+	) {
+		RequestDeadline deadline = RequestDeadline.of(env);
+		AnalysisPlan plan = AnalysisPlan.fromSelectionSet(virusIns, env.getSelectionSet()).withDeadline(deadline);
+		List<DataFetcherResult<AlignedSequence<VirusT>>> results = new ArrayList<>();
+		for (int i = 0; i < alignedSeqs.size(); i ++) {
+			Sequence seq = seqList.get(i);
+			if (deadline.isExpired()) {
+				results.add(RequestDeadline.toTimeoutResult(
+					env, i, RequestDeadline.newTimeoutException("sequence " + seq.getHeader())));
+				continue;
+			}
+			results.add(toSequenceAnalysisResult(alignedSeqs.get(i), seq, plan));
+		}
+		return results;
+	}
+
+	private static <VirusT extends Virus<VirusT>> List<DataFetcherResult<SequenceReads<VirusT>>> toSequenceReadsAnalysisResults(
+		VirusT virusIns, DataFetchingEnvironment env, List<ParsedSequenceReads<VirusT>> parsedList
+	) {
+		RequestDeadline deadline = RequestDeadline.of(env);
+		AnalysisPlan plan = AnalysisPlan.fromSelectionSet(virusIns, env.getSelectionSet()).withDeadline(deadline);
+		List<AnalysisContext> contexts = new ArrayList<>();
+		List<DataFetcherResult<SequenceReads<VirusT>>> results = new ArrayList<>();
+		for (ParsedSequenceReads<VirusT> parsed : parsedList) {
+			if (deadline.isExpired()) {
+				results.add(RequestDeadline.toTimeoutResult(
+					env, results.size(),
+					RequestDeadline.newTimeoutException("sequence reads " + parsed.getName())));
+				continue;
+			}
+			SequenceReads<VirusT> sr = parsed.toSequenceReads();
+			AnalysisContext ctx = new AnalysisContext(sr, parsed, plan);
+			contexts.add(ctx);
+			results.add(
+				new DataFetcherResult.Builder<SequenceReads<VirusT>>()
+				.data(sr)
+				.localContext(ctx)
+				.build()
+			);
+		}
+		plan.prepare(contexts);
+		return results;
+	}
+
+	private static <VirusT extends Virus<VirusT>> List<ParsedSequenceReads<VirusT>> toParsedSequenceReadsList(
+		List<Map<String, Object>> seqReads
+	) {
+		List<ParsedSequenceReads<VirusT>> parsedList = new ArrayList<>();
+		for (Map<String, Object> input : seqReads) {
+			ParsedSequenceReads<VirusT> parsed = parseSequenceReadsInput(input);
+			parsedList.add(parsed);
+		}
+		return parsedList;
+	}
+
+	/**
+	 * Analysis of each sequence is pipelined: the planned stages of a
+	 * sequence are submitted to the stage pool as soon as it is aligned,
+	 * while other sequences are still being aligned. Sequences not aligned
+	 * by the request deadline are returned as null items with timeout
+	 * errors.
+	 */
+	private static <VirusT extends Virus<VirusT>> DataFetcher<CompletableFuture<List<DataFetcherResult<AlignedSequence<VirusT>>>>> makeSequenceAnalysisDataFetcher(VirusT virusIns) {
 		return env -> {
 			List<Map<String, String>> seqs = env.getArgument("sequences");
-			if (seqs.size() > MAXIMUM_SEQUENCES_PER_PAYLOAD) {
-				throw new NumSequencesLimitExceededException(String.format(
-					"Too many sequences submitted in one request. (%d > %d)",
-					seqs.size(), MAXIMUM_SEQUENCES_PER_PAYLOAD));
+			checkNumSequences(seqs);
+			List<Sequence> seqList = toSequenceList(seqs);
+			RequestDeadline deadline = RequestDeadline.of(env);
+			AnalysisPlan plan = AnalysisPlan.fromSelectionSet(virusIns, env.getSelectionSet()).withDeadline(deadline);
+			AlignmentScheduler.Report report = new AlignmentScheduler.Report();
+			List<CompletableFuture<AlignedSequence<VirusT>>> alignedFutures = (
+				AlignedSequenceCache.alignAsync(virusIns, seqList, report, deadline));
+			List<CompletableFuture<DataFetcherResult<AlignedSequence<VirusT>>>> results = new ArrayList<>();
+			for (int i = 0; i < alignedFutures.size(); i ++) {
+				int idx = i;
+				Sequence seq = seqList.get(i);
+				results.add(
+					deadline.bound(alignedFutures.get(i), "sequence " + seq.getHeader())
+					.handleAsync((alignedSeq, e) -> {
+						if (e == null) {
+							return toSequenceAnalysisResult(alignedSeq, seq, plan);
+						}
+						if (RequestDeadline.isTimeout(e)) {
+							return RequestDeadline.<AlignedSequence<VirusT>>toTimeoutResult(env, idx, e);
+						}
+						throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+					}, AnalysisPlan.getStageExecutor()));
 			}
+			return CompletableFuture
+				.allOf(results.toArray(new CompletableFuture<?>[0]))
+				.thenApply(v -> {
+					Object context = env.getContext();
+					if (context instanceof GraphQLContext) {
+						((GraphQLContext) context).put(AlignmentScheduler.CONTEXT_KEY, report.toMap());
+					}
+					return CompletableFutures.join(results);
+				});
+		};
+	};
+
+	private static <VirusT extends Virus<VirusT>> DataFetcher<List<DataFetcherResult<SequenceReads<VirusT>>>> makeSequenceReadsAnalysisDataFetcher(VirusT virusIns) {
+		return env -> {
+			List<Map<String, Object>> seqReads = env.getArgument("sequenceReads");
+			List<ParsedSequenceReads<VirusT>> parsedList = toParsedSequenceReadsList(seqReads);
+			return toSequenceReadsAnalysisResults(virusIns, env, parsedList);
+		};
+	};
+
+	private static <VirusT extends Virus<VirusT>> DataFetcher<List<DataFetcherResult<AlignedSequence<VirusT>>>> makeSequenceAnalysisByHandleDataFetcher(VirusT virusIns) {
+		return env -> {
+			String handle = env.getArgument("handle");
+			AnalysisHandleStore.SequencesEntry<VirusT> entry = AnalysisHandleStore.getInstance().getSequences(virusIns, handle);
+			return toSequenceAnalysisResults(virusIns, env, entry.getSequences(), entry.getAlignedSequences());
+		};
+	};
+
+	private static <VirusT extends Virus<VirusT>> DataFetcher<List<DataFetcherResult<SequenceReads<VirusT>>>> makeSequenceReadsAnalysisByHandleDataFetcher(VirusT virusIns) {
+		return env -> {
+			String handle = env.getArgument("handle");
+			AnalysisHandleStore.SequenceReadsEntry<VirusT> entry = AnalysisHandleStore.getInstance().getSequenceReads(virusIns, handle);
+			return toSequenceReadsAnalysisResults(virusIns, env, entry.getParsedSequenceReads());
+		};
+	};
+
+	private static <VirusT extends Virus<VirusT>> DataFetcher<String> makeIngestSequencesDataFetcher(VirusT virusIns) {
+		return env -> {
+			List<Map<String, String>> seqs = env.getArgument("sequences");
+			checkNumSequences(seqs);
 			List<Sequence> seqList = toSequenceList(seqs);
-			List<AlignedSequence<VirusT>> results = Aligner.getInstance(virusIns).parallelAlign(seqList);
-			return results;
+			List<AlignedSequence<VirusT>> alignedSeqs = CompletableFutures.join(
+				AlignedSequenceCache.alignAsync(virusIns, seqList, null, RequestDeadline.of(env)));
+			return AnalysisHandleStore.getInstance().putSequences(virusIns, seqList, alignedSeqs);
 		};
 	};
 
-	private static DataFetcher<List<SequenceReads<?>>> sequenceReadsAnalysisDataFetcher = env -> {
-		List<Map<String, Object>> seqReads = env.getArgument("sequenceReads");
-		return (
-			seqReads.stream()
-			.map(s -> toSequenceReadsList(s))
-			.collect(Collectors.toList()));
+	private static <VirusT extends Virus<VirusT>> DataFetcher<String> makeIngestSequenceReadsDataFetcher(VirusT virusIns) {
+		return env -> {
+			List<Map<String, Object>> seqReads = env.getArgument("sequenceReads");
+			List<ParsedSequenceReads<VirusT>> parsedList = toParsedSequenceReadsList(seqReads);
+			return AnalysisHandleStore.getInstance().putSequenceReads(virusIns, parsedList);
+		};
+	};
+
+	private static DataFetcher<Boolean> releaseAnalysisHandleDataFetcher = env -> {
+		String handle = env.getArgument("handle");
+		return AnalysisHandleStore.getInstance().release(handle);
 	};
 
 	private static <VirusT extends Virus<VirusT>> Triple<Set<Gene<VirusT>>, MutationSet<VirusT>, String>
 	prepareMutationsAnalysisData(VirusT virusIns, List<String> mutations, String name) {
-		return Triple.of(
-			virusIns.extractMutationGenes(mutations),
-			virusIns.newMutationSet(mutations),
-			name
-		);
+		MutationSet<VirusT> mutationSet = MutationInterner.newMutationSet(virusIns, null, mutations);
+		// genes of the parsed mutations, without parsing the strings again
+		Set<Gene<VirusT>> genes = new LinkedHashSet<>(mutationSet.groupByGene().keySet());
+		return Triple.of(genes, mutationSet, name);
 	}
 
 	private static <VirusT extends Virus<VirusT>> DataFetcher<Triple<Set<Gene<VirusT>>, MutationSet<VirusT>, String>>
@@ -141,46 +294,25 @@ public class SierraSchema {
 	};
 
 	private static <VirusT extends Virus<VirusT>> DataFetcher<Collection<Gene<VirusT>>> makeGeneDataFetcher(VirusT virusIns) {
+		ReferenceDataSnapshot<VirusT> snapshot = ReferenceDataSnapshot.of(virusIns);
 		return env -> {
 			Collection<String> geneNames = env.getArgument("names");
 			if (geneNames == null || geneNames.isEmpty()) {
-				return (
-					virusIns
-					.getStrains()
-					.stream()
-					.flatMap(s -> s.getGenes().stream())
-					.collect(Collectors.toList())
-				);
+				return snapshot.getAllGenes();
 			}
 			else {
-				Strain<VirusT> mainStrain = virusIns.getMainStrain();
-				return (
-					geneNames
-					.stream()
-					.map(gene -> {
-						try {
-							return virusIns.getGene(gene);
-						}
-						catch (IllegalArgumentException e) {
-							return mainStrain.getGene(gene);
-						}
-					})
-					.collect(Collectors.toList())
-				);
+				List<Gene<VirusT>> genes = new ArrayList<>();
+				for (String geneName : geneNames) {
+					genes.add(snapshot.getGene(geneName));
+				}
+				return genes;
 			}
 		};
 	};
 
 	private static <VirusT extends Virus<VirusT>> DataFetcher<List<String>> makeMutationPrevalenceSubtypesDataFetcher(VirusT virusIns) {
-		return env -> {
-			return (
-				virusIns
-				.getStrains()
-				.stream()
-				.flatMap(s -> virusIns.getMainSubtypes(s).stream())
-				.collect(Collectors.toList())
-			);
-		};
+		ReferenceDataSnapshot<VirusT> snapshot = ReferenceDataSnapshot.of(virusIns);
+		return env -> snapshot.getMainSubtypes();
 	};
 
 	private static GraphQLCodeRegistry attachDefaultDataFetcher(GraphQLType gqObj, GraphQLCodeRegistry codeRegistry) {
@@ -245,6 +377,22 @@ public class SierraSchema {
 						.type(new GraphQLList(iSequenceReads.get(name)))
 						.description("Sequence reads to be analyzed.")
 						.build()))
+				.field(field -> field
+					.type(new GraphQLList(oSequenceAnalysis.get(name)))
+					.name("sequenceAnalysisByHandle")
+					.description("Analyze sequences previously ingested by `ingestSequences`.")
+					.argument(arg -> arg
+						.name("handle")
+						.type(new GraphQLNonNull(GraphQLString))
+						.description("Analysis handle returned by `ingestSequences`.")))
+				.field(field -> field
+					.type(new GraphQLList(oSequenceReadsAnalysis.get(name)))
+					.name("sequenceReadsAnalysisByHandle")
+					.description("Analyze sequence reads previously ingested by `ingestSequenceReads`.")
+					.argument(arg -> arg
+						.name("handle")
+						.type(new GraphQLNonNull(GraphQLString))
+						.description("Analysis handle returned by `ingestSequenceReads`.")))
 				.field(field -> field
 					.type(oMutationsAnalysis.get(name))
 					.name("mutationsAnalysis")
@@ -301,6 +449,42 @@ public class SierraSchema {
 		}
 	);
 
+	public static SimpleMemoizer<GraphQLObjectType> oRootMutation = new SimpleMemoizer<>(
+		name -> (
+			newObject()
+			.name("RootMutation")
+			.field(field -> field
+				.type(GraphQLString)
+				.name("ingestSequences")
+				.description(
+					"Align sequences and keep the results on the server. Returns an " +
+					"analysis handle to be used by `sequenceAnalysisByHandle`.")
+				.argument(arg -> arg
+					.name("sequences")
+					.type(new GraphQLList(iUnalignedSequence))
+					.description("Sequences to be ingested.")))
+			.field(field -> field
+				.type(GraphQLString)
+				.name("ingestSequenceReads")
+				.description(
+					"Parse sequence reads and keep them on the server. Returns an " +
+					"analysis handle to be used by `sequenceReadsAnalysisByHandle`.")
+				.argument(arg -> arg
+					.name("sequenceReads")
+					.type(new GraphQLList(iSequenceReads.get(name)))
+					.description("Sequence reads to be ingested.")))
+			.field(field -> field
+				.type(GraphQLBoolean)
+				.name("releaseAnalysisHandle")
+				.description("Release an analysis handle before it expires.")
+				.argument(arg -> arg
+					.name("handle")
+					.type(new GraphQLNonNull(GraphQLString))
+					.description("Analysis handle to be released.")))
+			.build()
+		)
+	);
+
 	private static <VirusT extends Virus<VirusT>> Builder makeRootRegistryBuilder(VirusT virusIns, String rootNodeName) {
 		return newCodeRegistry()
 			.dataFetcher(
@@ -317,7 +501,15 @@ public class SierraSchema {
 			)
 			.dataFetcher(
 				coordinates(rootNodeName, "sequenceReadsAnalysis"),
-				sequenceReadsAnalysisDataFetcher
+				makeSequenceReadsAnalysisDataFetcher(virusIns)
+			)
+			.dataFetcher(
+				coordinates(rootNodeName, "sequenceAnalysisByHandle"),
+				makeSequenceAnalysisByHandleDataFetcher(virusIns)
+			)
+			.dataFetcher(
+				coordinates(rootNodeName, "sequenceReadsAnalysisByHandle"),
+				makeSequenceReadsAnalysisByHandleDataFetcher(virusIns)
 			)
 			.dataFetcher(
 				coordinates(rootNodeName, "mutationsAnalysis"),
@@ -344,6 +536,9 @@ public class SierraSchema {
 			oRoot.get(virusIns.getName()),
 			makeRootRegistryBuilder(virusIns, "Root")
 			.dataFetcher(coordinates("Root", "viewer"), viewerDataFetcher)
+			.dataFetcher(coordinates("RootMutation", "ingestSequences"), makeIngestSequencesDataFetcher(virusIns))
+			.dataFetcher(coordinates("RootMutation", "ingestSequenceReads"), makeIngestSequenceReadsDataFetcher(virusIns))
+			.dataFetcher(coordinates("RootMutation", "releaseAnalysisHandle"), releaseAnalysisHandleDataFetcher)
 			.dataFetchers(makeRootRegistryBuilder(virusIns, "Viewer").build())
 			.dataFetchers(makeSequenceAnalysisCodeRegistry(virusIns))
 			.dataFetchers(descriptiveStatisticsCodeRegistry)
@@ -367,10 +562,52 @@ public class SierraSchema {
 				virusIns,
 				GraphQLSchema.newSchema()
 					.query(oRoot.get(virusIns.getName()))
+					.mutation(oRootMutation.get(virusIns.getName()))
 					.codeRegistry(makeCodeRegistry(virusIns))
 					.build()
 			);
 		}
 		return schemaSingletons.get(virusIns);
 	}
+
+	/**
+	 * Builds a GraphQL instance of the schema. Sub-results of reference
+	 * objects (genes, drugs, etc.) are shared within each request.
+	 */
+	public static <T extends Virus<T>> GraphQL makeGraphQL(T virusIns) {
+		return makeGraphQL(virusIns, false);
+	}
+
+	public static <T extends Virus<T>> GraphQL makeGraphQL(T virusIns, boolean normalizedEntities) {
+		return makeGraphQL(virusIns, normalizedEntities, Collections.emptyList());
+	}
+
+	/**
+	 * Builds a GraphQL instance of the schema, optionally in the normalized
+	 * entities output mode (see {@link NormalizedEntitiesExecutionStrategy}).
+	 * Normalized output doesn't conform to the schema; only clients which
+	 * expand the references should be served by such an instance.
+	 *
+	 * The given server instrumentations are chained in order, before the
+	 * instrumentation of the normalized mode. The default instrumentations
+	 * of graphql-java are still added.
+	 */
+	public static <T extends Virus<T>> GraphQL makeGraphQL(
+		T virusIns, boolean normalizedEntities, List<Instrumentation> instrumentations
+	) {
+		GraphQL.Builder builder = GraphQL.newGraphQL(makeSchema(virusIns));
+		List<Instrumentation> chained = new ArrayList<>(instrumentations);
+		if (normalizedEntities) {
+			NormalizedEntitiesExecutionStrategy strategy = new NormalizedEntitiesExecutionStrategy();
+			builder.queryExecutionStrategy(strategy);
+			chained.add(strategy.getInstrumentation());
+		}
+		else {
+			builder.queryExecutionStrategy(new ReferenceObjectExecutionStrategy());
+		}
+		if (!chained.isEmpty()) {
+			builder.instrumentation(new ChainedInstrumentation(chained));
+		}
+		return builder.build();
+	}
 }
\ No newline at end of file
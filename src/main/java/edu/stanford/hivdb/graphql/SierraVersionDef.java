@@ -43,7 +43,7 @@ public class SierraVersionDef {
 			.description("Publish date of this version."))
 		.build();
 
-	public static DataFetcher<Map<String, String>> currentSierraVersionFetcher = env -> {
+	protected static Map<String, String> loadSierraVersion() {
 		Properties prop = new Properties();
 		ClassLoader loader = Thread.currentThread().getContextClassLoader();
 		InputStream stream = loader.getResourceAsStream("version.properties");
@@ -56,7 +56,10 @@ public class SierraVersionDef {
 		result.put("text", prop.getProperty("version"));
 		result.put("publishDate", prop.getProperty("versionDate"));
 		return result;
-	};
+	}
+
+	public static DataFetcher<Map<String, String>> currentSierraVersionFetcher =
+		env -> ReferenceDataSnapshot.getCurrentSierraVersion();
 
 
 }
@@ -0,0 +1,59 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Memoizes values derived from a source object for as long as the source
+ * object is alive. Sources are compared by identity.
+ */
+public class SourceMemoizer {
+
+	private static final Cache<Object, Map<Object, Optional<?>>> memos = (
+		CacheBuilder.newBuilder().weakKeys().build());
+
+	@SuppressWarnings("unchecked")
+	public static <T> T memoize(Object source, Object key, Supplier<T> supplier) {
+		Map<Object, Optional<?>> memo;
+		try {
+			memo = memos.get(source, ConcurrentHashMap::new);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		Optional<?> value = memo.get(key);
+		if (value == null) {
+			value = Optional.ofNullable(supplier.get());
+			Optional<?> prev = memo.putIfAbsent(key, value);
+			if (prev != null) {
+				value = prev;
+			}
+		}
+		return (T) value.orElse(null);
+	}
+
+}
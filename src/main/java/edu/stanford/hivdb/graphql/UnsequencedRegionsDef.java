@@ -22,6 +22,13 @@ import graphql.schema.*;
 import static graphql.Scalars.*;
 import static graphql.schema.GraphQLObjectType.newObject;
 
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import edu.stanford.hivdb.seqreads.GeneSequenceReads;
 import edu.stanford.hivdb.seqreads.SequenceReads;
 import edu.stanford.hivdb.sequences.AlignedGeneSeq;
@@ -33,6 +40,10 @@ import edu.stanford.hivdb.viruses.Virus;
 
 public class UnsequencedRegionsDef {
 
+	// source object => gene => unsequenced regions; sources are compared by identity
+	private static final Cache<Object, Map<Gene<?>, Optional<GeneRegions<?>>>> unseqRegionsCache = (
+		CacheBuilder.newBuilder().weakKeys().build());
+
 	public static GraphQLObjectType oUnsequencedRegion = newObject()
 		.name("UnsequencedRegion")
 		.description("An unsequenced region")
@@ -114,4 +125,21 @@ public class UnsequencedRegionsDef {
 	
 	}
 
+	/**
+	 * Same as {@link #getUnsequencedRegionsFromSource(Object, Gene)}, but
+	 * looks up the regions of each source and gene only once.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Virus<T>> GeneRegions<T> getCachedUnsequencedRegions(Object src, Gene<T> gene) {
+		if (src == null || src instanceof AnalysisContext) {
+			// not a source of regions, same as a null local context
+			return null;
+		}
+		Map<Gene<?>, Optional<GeneRegions<?>>> byGene = (
+			unseqRegionsCache.asMap().computeIfAbsent(src, k -> new ConcurrentHashMap<>()));
+		return (GeneRegions<T>) byGene.computeIfAbsent(
+			gene, g -> Optional.ofNullable(getUnsequencedRegionsFromSource(src, gene))
+		).orElse(null);
+	}
+
 }
@@ -0,0 +1,146 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.drugresistance.algorithm.AlgorithmComparison;
+import edu.stanford.hivdb.drugresistance.algorithm.AlgorithmComparison.ComparableDrugScore;
+import edu.stanford.hivdb.drugresistance.algorithm.DrugResistanceAlgorithm;
+import edu.stanford.hivdb.drugs.DrugClass;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.MutationSet;
+
+public class AlgorithmComparisonDefTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	private static String toText(ComparableDrugScore<?> cds) {
+		return String.join(
+			"|", cds.getDrug().getName(), cds.getAlgorithm(), String.valueOf(cds.getSIR()),
+			cds.getInterpretation(), cds.getExplanation());
+	}
+
+	/**
+	 * Drug scores grouped by drug class name. Scores are sorted since
+	 * neither the baseline nor the split comparison promise an order.
+	 */
+	private static Map<String, List<String>> summarize(List<Map<String, Object>> results) {
+		Map<String, List<String>> summary = new TreeMap<>();
+		for (Map<String, Object> result : results) {
+			List<String> scores = new ArrayList<>();
+			for (Object cds : (List<?>) result.get("drugScores")) {
+				scores.add(toText((ComparableDrugScore<?>) cds));
+			}
+			Collections.sort(scores);
+			assertNull(summary.put(((DrugClass<?>) result.get("drugClass")).getName(), scores));
+		}
+		return summary;
+	}
+
+	/**
+	 * The single AlgorithmComparison call the per-(algorithm, gene) split
+	 * replaced.
+	 */
+	private static Map<String, List<String>> baseline(
+			MutationSet<HIV> allMuts, Collection<DrugResistanceAlgorithm<HIV>> algorithms) {
+		return new AlgorithmComparison<>(allMuts, algorithms)
+			.getComparisonResults()
+			.stream()
+			.collect(Collectors.groupingBy(
+				cds -> cds.getDrug().getDrugClass().getName(),
+				TreeMap::new,
+				Collectors.mapping(
+					AlgorithmComparisonDefTest::toText,
+					Collectors.collectingAndThen(Collectors.toList(), scores -> {
+						Collections.sort(scores);
+						return scores;
+					}))));
+	}
+
+	private static List<String> getAllAlgorithmNames() {
+		return hiv.getDrugResistAlgorithms()
+			.stream()
+			.map(DrugResistanceAlgorithm::getName)
+			.collect(Collectors.toList());
+	}
+
+	private static void assertSameAsBaseline(MutationSet<HIV> allMuts) {
+		List<String> names = getAllAlgorithmNames();
+		Map<String, List<String>> expected = baseline(allMuts, hiv.getDrugResistAlgorithms(names));
+		assertEquals(
+			expected,
+			summarize(AlgorithmComparisonDef.fetchAlgorithmComparisonData(
+				hiv, allMuts, names, Collections.emptyMap())));
+		// second call is answered from the per-gene cache
+		assertEquals(
+			expected,
+			summarize(AlgorithmComparisonDef.fetchAlgorithmComparisonData(
+				hiv, allMuts, names, Collections.emptyMap())));
+	}
+
+	@Test
+	public void testAllGenesWithMutations() {
+		assertSameAsBaseline(hiv.newMutationSet(List.of(
+			"PR:L90M", "PR:I84V", "RT:M184V", "RT:K65R", "RT:K103N", "IN:Q148H", "IN:G140S")));
+	}
+
+	@Test
+	public void testGenesWithoutMutations() {
+		// IN has no mutations and the split skips it
+		assertSameAsBaseline(hiv.newMutationSet(List.of("PR:L90M", "RT:M184V", "RT:K103N")));
+		// only RT has mutations
+		assertSameAsBaseline(hiv.newMutationSet(List.of("RT:M184V")));
+	}
+
+	@Test
+	public void testNoMutations() {
+		assertSameAsBaseline(hiv.newMutationSet(Collections.emptyList()));
+	}
+
+	@Test
+	public void testMixturesInsertionsAndDeletions() {
+		assertSameAsBaseline(hiv.newMutationSet(List.of(
+			"PR:L90LM", "RT:T69_SS", "RT:K65-", "RT:M184IV")));
+	}
+
+	@Test
+	public void testCustomAlgorithm() {
+		MutationSet<HIV> allMuts = hiv.newMutationSet(List.of("PR:L90M", "RT:M184V", "IN:Q148H"));
+		DrugResistanceAlgorithm<HIV> hivdb = hiv.getDefaultDrugResistAlgorithm();
+		DrugResistanceAlgorithm<HIV> custom = new DrugResistanceAlgorithm<>(
+			"CustomHIVDB", hiv, hivdb.getXMLText());
+		assertEquals(
+			baseline(allMuts, List.of(hivdb, custom)),
+			summarize(AlgorithmComparisonDef.fetchAlgorithmComparisonData(
+				hiv, allMuts, List.of(hivdb.getName()),
+				Map.of("CustomHIVDB", hivdb.getXMLText()))));
+	}
+
+}
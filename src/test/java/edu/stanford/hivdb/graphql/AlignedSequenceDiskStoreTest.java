@@ -0,0 +1,209 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AlignedSequenceDiskStoreTest {
+
+	private static final long MAXIMUM_BYTES = 8L << 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] newValue(String key, int size) {
+		byte[] seed = key.getBytes(StandardCharsets.UTF_8);
+		byte[] value = new byte[size];
+		for (int i = 0; i < size; i ++) {
+			value[i] = (byte) (seed[i % seed.length] + i);
+		}
+		return value;
+	}
+
+	private Path segmentPath(long id) {
+		return folder.getRoot().toPath().resolve(String.format("aligned-sequences.%012d.seg", id));
+	}
+
+	private AlignedSequenceDiskStore open() throws IOException {
+		return new AlignedSequenceDiskStore(folder.getRoot().toPath(), MAXIMUM_BYTES, "v1/");
+	}
+
+	@Test
+	public void testPutGetAndReopen() throws IOException {
+		AlignedSequenceDiskStore store = open();
+		assertNull(store.get("v1/a"));
+		assertTrue(store.put("v1/a", newValue("v1/a", 100)));
+		assertTrue(store.put("v1/b", newValue("v1/b", 0)));
+		assertArrayEquals(newValue("v1/a", 100), store.get("v1/a"));
+		assertArrayEquals(new byte[0], store.get("v1/b"));
+
+		AlignedSequenceDiskStore reopened = open();
+		assertArrayEquals(newValue("v1/a", 100), reopened.get("v1/a"));
+		assertArrayEquals(new byte[0], reopened.get("v1/b"));
+	}
+
+	@Test
+	public void testOtherKeyPrefix() throws IOException {
+		AlignedSequenceDiskStore store = open();
+		assertFalse(store.put("v0/a", newValue("v0/a", 10)));
+		assertTrue(store.put("v1/a", newValue("v1/a", 10)));
+
+		AlignedSequenceDiskStore other = new AlignedSequenceDiskStore(
+			folder.getRoot().toPath(), MAXIMUM_BYTES, "v2/");
+		assertNull(other.get("v1/a"));
+		assertTrue(other.put("v2/a", newValue("v2/a", 10)));
+		assertArrayEquals(newValue("v2/a", 10), other.get("v2/a"));
+	}
+
+	@Test
+	public void testCorruptValue() throws IOException {
+		AlignedSequenceDiskStore store = open();
+		store.put("v1/a", newValue("v1/a", 100));
+		store.put("v1/b", newValue("v1/b", 100));
+		long size = Files.size(segmentPath(0));
+		try (RandomAccessFile file = new RandomAccessFile(segmentPath(0).toFile(), "rw")) {
+			// the last byte of the second value
+			file.seek(size - 1);
+			int b = file.read();
+			file.seek(size - 1);
+			file.write(b ^ 0xff);
+		}
+		assertNull(store.get("v1/b"));
+		assertArrayEquals(newValue("v1/a", 100), store.get("v1/a"));
+		assertNull(open().get("v1/b"));
+	}
+
+	@Test
+	public void testTruncatedSegment() throws IOException {
+		AlignedSequenceDiskStore store = open();
+		store.put("v1/a", newValue("v1/a", 100));
+		store.put("v1/b", newValue("v1/b", 100));
+		long size = Files.size(segmentPath(0));
+		try (RandomAccessFile file = new RandomAccessFile(segmentPath(0).toFile(), "rw")) {
+			file.setLength(size - 10);
+		}
+
+		// the partial record is dropped on open, and the space reused
+		AlignedSequenceDiskStore reopened = open();
+		assertArrayEquals(newValue("v1/a", 100), reopened.get("v1/a"));
+		assertNull(reopened.get("v1/b"));
+		assertTrue(reopened.put("v1/c", newValue("v1/c", 100)));
+		assertArrayEquals(newValue("v1/c", 100), reopened.get("v1/c"));
+		assertArrayEquals(newValue("v1/c", 100), open().get("v1/c"));
+
+		// truncated behind an open store
+		assertNull(store.get("v1/b"));
+	}
+
+	@Test
+	public void testGarbageSegment() throws IOException {
+		Files.write(segmentPath(0), newValue("garbage", 1000));
+		AlignedSequenceDiskStore store = open();
+		assertNull(store.get("v1/a"));
+		assertTrue(store.put("v1/a", newValue("v1/a", 100)));
+		assertArrayEquals(newValue("v1/a", 100), store.get("v1/a"));
+	}
+
+	@Test
+	public void testEvictOldestSegment() throws IOException {
+		AlignedSequenceDiskStore store = open();
+		// segments are 1MB; write ten segments worth of records
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 100; i ++) {
+			String key = "v1/" + i;
+			assertTrue(store.put(key, newValue(key, 100000)));
+			keys.add(key);
+		}
+		assertFalse(Files.exists(segmentPath(0)));
+		assertTrue(Files.exists(segmentPath(2)));
+		assertNull(store.get(keys.get(0)));
+		assertArrayEquals(newValue(keys.get(99), 100000), store.get(keys.get(99)));
+		assertTrue(store.size() <= MAXIMUM_BYTES);
+
+		AlignedSequenceDiskStore reopened = open();
+		assertNull(reopened.get(keys.get(0)));
+		assertArrayEquals(newValue(keys.get(99), 100000), reopened.get(keys.get(99)));
+	}
+
+	@Test
+	public void testTooLargeValue() throws IOException {
+		AlignedSequenceDiskStore store = open();
+		assertFalse(store.put("v1/a", new byte[2 << 20]));
+		assertNull(store.get("v1/a"));
+	}
+
+	@Test
+	public void testConcurrentPutGet() throws Exception {
+		AlignedSequenceDiskStore store = open();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Callable<Boolean>> tasks = new ArrayList<>();
+			for (int t = 0; t < 8; t ++) {
+				int thread = t;
+				tasks.add(() -> {
+					for (int i = 0; i < 200; i ++) {
+						String key = "v1/" + thread + "/" + i;
+						byte[] value = newValue(key, 2000);
+						if (!store.put(key, value) || !Arrays.equals(value, store.get(key))) {
+							return false;
+						}
+						// read back a key of another thread
+						String otherKey = "v1/" + ((thread + 1) % 8) + "/" + i;
+						byte[] other = store.get(otherKey);
+						if (other != null && !Arrays.equals(newValue(otherKey, 2000), other)) {
+							return false;
+						}
+					}
+					return true;
+				});
+			}
+			for (Future<Boolean> result : executor.invokeAll(tasks)) {
+				assertTrue(result.get());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		AlignedSequenceDiskStore reopened = open();
+		for (int t = 0; t < 8; t ++) {
+			for (int i = 0; i < 200; i ++) {
+				String key = "v1/" + t + "/" + i;
+				assertArrayEquals(newValue(key, 2000), reopened.get(key));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.sequences.Sequence;
+
+public class AlignmentSchedulerTest {
+
+	// uneven lengths; the fake aligner spends 1 ms per 10 NAs
+	private static final int[] LENGTHS = {900, 100, 300, 500, 200, 700, 400, 600, 800, 150, 50};
+
+	private static List<Sequence> newSequences() {
+		List<Sequence> seqs = new ArrayList<>();
+		for (int i = 0; i < LENGTHS.length; i ++) {
+			seqs.add(new Sequence("seq" + i, "A".repeat(LENGTHS[i])));
+		}
+		return seqs;
+	}
+
+	private static List<String> fakeAlign(List<Sequence> seqs) {
+		List<String> results = new ArrayList<>();
+		for (Sequence seq : seqs) {
+			try {
+				Thread.sleep(seq.getLength() / 10);
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			results.add(seq.getHeader());
+		}
+		return results;
+	}
+
+	@Test
+	public void testMakespanAndBusyTime() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			List<Sequence> seqs = newSequences();
+			AlignmentScheduler.Report report = new AlignmentScheduler.Report();
+			List<String> results = CompletableFutures.join(AlignmentScheduler.submit(
+				seqs, AlignmentSchedulerTest::fakeAlign, pool, report, RequestDeadline.NONE));
+
+			// results are returned in input order
+			assertEquals(
+				seqs.stream().map(Sequence::getHeader).collect(Collectors.toList()),
+				results);
+
+			Map<String, Object> stats = report.toMap();
+			assertEquals((long) LENGTHS.length, stats.get("numSequences"));
+			assertEquals(4L, stats.get("numAlignerCalls"));
+			double makespan = (double) stats.get("makespanMillis");
+			double busy = (double) stats.get("busyMillis");
+			// 470 ms of work balanced over four chunks
+			assertTrue(busy >= 470);
+			assertTrue("makespan " + makespan + " >= busy " + busy, makespan < busy);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testExpiredDeadline() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			AlignmentScheduler.Report report = new AlignmentScheduler.Report();
+			RequestDeadline deadline = RequestDeadline.atEpochMillis(System.currentTimeMillis() - 1000);
+			List<CompletableFuture<String>> futures = AlignmentScheduler.submit(
+				newSequences(), AlignmentSchedulerTest::fakeAlign, pool, report, deadline);
+			for (CompletableFuture<String> future : futures) {
+				CompletionException e = assertThrows(CompletionException.class, future::join);
+				assertTrue(RequestDeadline.isTimeout(e.getCause()));
+			}
+			assertEquals(0L, report.toMap().get("numAlignerCalls"));
+			assertEquals(0.0, report.toMap().get("busyMillis"));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static edu.stanford.hivdb.graphql.Exceptions.RequestTimeoutException;
+
+public class AnalysisContextTest {
+
+	private static AnalysisContext newContext() {
+		return new AnalysisContext("source", null, AnalysisPlan.NO_STAGES);
+	}
+
+	@Test
+	public void testMemoize() {
+		AnalysisContext ctx = newContext();
+		AtomicInteger calls = new AtomicInteger();
+		assertEquals("a", ctx.memoize("key", () -> { calls.incrementAndGet(); return "a"; }));
+		assertEquals("a", ctx.memoize("key", () -> { calls.incrementAndGet(); return "b"; }));
+		assertNull(ctx.memoize("null", () -> { calls.incrementAndGet(); return null; }));
+		assertNull(ctx.memoize("null", () -> { calls.incrementAndGet(); return "c"; }));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testNotStartedStageRunsInField() {
+		AnalysisContext ctx = newContext();
+		AtomicInteger calls = new AtomicInteger();
+		List<Runnable> queued = new ArrayList<>();
+		ctx.memoizeAsync("key", () -> { calls.incrementAndGet(); return "staged"; }, queued::add);
+		assertEquals(1, queued.size());
+
+		// the field doesn't wait for the queued stage
+		assertEquals("staged", ctx.memoize("key", () -> "field"));
+		assertEquals(1, calls.get());
+
+		// the stage is a no-op once it gets its turn
+		queued.get(0).run();
+		assertEquals(1, calls.get());
+		assertEquals("staged", ctx.memoize("key", () -> "field"));
+	}
+
+	@Test
+	public void testRunningStageIsAwaited() throws Exception {
+		AnalysisContext ctx = newContext();
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			ctx.memoizeAsync("key", () -> {
+				calls.incrementAndGet();
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "staged";
+			}, executor);
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+
+			Future<Object> field = executor.submit(() -> ctx.memoize("key", () -> "field"));
+			release.countDown();
+			assertEquals("staged", field.get(5, TimeUnit.SECONDS));
+			assertEquals(1, calls.get());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFailedStageIsRecomputed() {
+		AnalysisContext ctx = newContext();
+		ctx.memoizeAsync("key", () -> { throw new IllegalStateException("stage failed"); }, Runnable::run);
+		assertEquals("field", ctx.memoize("key", () -> "field"));
+	}
+
+	@Test
+	public void testMemoizedStageIsNotResubmitted() {
+		AnalysisContext ctx = newContext();
+		List<Runnable> queued = new ArrayList<>();
+		ctx.memoize("key", () -> "field");
+		ctx.memoizeAsync("key", () -> "staged", queued::add);
+		ctx.memoizeAsync("other", () -> "staged", queued::add);
+		ctx.memoizeAsync("other", () -> "staged", queued::add);
+		assertEquals(1, queued.size());
+	}
+
+	@Test(expected = RequestTimeoutException.class)
+	public void testExpiredDeadline() throws InterruptedException {
+		RequestDeadline deadline = RequestDeadline.afterMillis(1);
+		Thread.sleep(5);
+		AnalysisContext ctx = new AnalysisContext(
+			"source", null, AnalysisPlan.NO_STAGES.withDeadline(deadline));
+		ctx.memoize("key", () -> "field");
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import edu.stanford.hivdb.graphql.CachedAlignment.GeneAlignment;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.AlignedSite;
+import edu.stanford.hivdb.sequences.Sequence;
+
+import static edu.stanford.hivdb.graphql.Exceptions.AnalysisHandleNotFoundException;
+
+public class AnalysisHandleStoreTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	private static class FakeTicker extends Ticker {
+		private final AtomicLong nanos = new AtomicLong();
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+
+		private void advance(long seconds) {
+			nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+		}
+	}
+
+	private static List<ParsedSequenceReads<HIV>> newParsedList() {
+		return List.of(new ParsedSequenceReads<>(
+			"sample", hiv.getMainStrain(), Collections.emptyList(), Collections.emptyList(),
+			null, null, null, null));
+	}
+
+	@Test
+	public void testExpireAfterAccess() {
+		FakeTicker ticker = new FakeTicker();
+		AnalysisHandleStore store = new AnalysisHandleStore(60, 1 << 20, ticker);
+		List<ParsedSequenceReads<HIV>> parsedList = newParsedList();
+		String handle = store.putSequenceReads(hiv, parsedList);
+
+		ticker.advance(59);
+		assertSame(parsedList, store.getSequenceReads(hiv, handle).getParsedSequenceReads());
+		// the access restarted the TTL
+		ticker.advance(59);
+		assertSame(parsedList, store.getSequenceReads(hiv, handle).getParsedSequenceReads());
+		ticker.advance(61);
+		assertThrows(AnalysisHandleNotFoundException.class, () -> store.getSequenceReads(hiv, handle));
+		assertFalse(store.release(handle));
+	}
+
+	@Test
+	public void testRelease() {
+		AnalysisHandleStore store = new AnalysisHandleStore(60, 1 << 20, new FakeTicker());
+		String handle = store.putSequenceReads(hiv, newParsedList());
+		String other = store.putSequenceReads(hiv, newParsedList());
+		assertTrue(store.release(handle));
+		assertThrows(AnalysisHandleNotFoundException.class, () -> store.getSequenceReads(hiv, handle));
+		assertFalse(store.release(handle));
+		assertFalse(store.release(null));
+		assertFalse(store.release("unknown"));
+		// other handles are kept
+		assertNotNull(store.getSequenceReads(hiv, other));
+	}
+
+	@Test
+	public void testPayloadKind() {
+		AnalysisHandleStore store = new AnalysisHandleStore(60, 1 << 20, new FakeTicker());
+		String handle = store.putSequenceReads(hiv, newParsedList());
+		assertThrows(AnalysisHandleNotFoundException.class, () -> store.getSequences(hiv, handle));
+		assertThrows(AnalysisHandleNotFoundException.class, () -> store.getSequenceReads(hiv, null));
+	}
+
+	@Test
+	public void testNewAlignedSequencesPerQuery() {
+		String nas = "CCTCAGATCACTCTTTGG";
+		CachedAlignment<HIV> alignment = new CachedAlignment<>(
+			hiv.getMainStrain(), nas,
+			List.of(new GeneAlignment<>(
+				hiv.getGene("HIV1PR"), 1, 6, 1, nas.length(), 0, 0,
+				List.of(new AlignedSite(1, 1, 3), new AlignedSite(2, 4, 3)),
+				Collections.emptyList(), Collections.emptyList())),
+			Collections.emptyMap(), false);
+		List<Sequence> seqs = List.of(new Sequence("seqA", nas), new Sequence("seqB", nas));
+		AnalysisHandleStore store = new AnalysisHandleStore(60, 1 << 20, new FakeTicker());
+		String handle = store.putSequences(hiv, seqs, List.of(
+			alignment.toAlignedSequence(seqs.get(0)), alignment.toAlignedSequence(seqs.get(1))));
+
+		List<AlignedSequence<HIV>> first = store.getSequences(hiv, handle).getAlignedSequences();
+		List<AlignedSequence<HIV>> second = store.getSequences(hiv, handle).getAlignedSequences();
+		assertEquals(seqs, store.getSequences(hiv, handle).getSequences());
+		assertEquals(2, first.size());
+		for (int i = 0; i < 2; i ++) {
+			assertNotSame(first.get(i), second.get(i));
+			assertNotSame(
+				first.get(i).getAlignedGeneSequence(hiv.getGene("HIV1PR")),
+				second.get(i).getAlignedGeneSequence(hiv.getGene("HIV1PR")));
+			assertEquals(seqs.get(i).getHeader(), first.get(i).getInputSequence().getHeader());
+		}
+	}
+
+}
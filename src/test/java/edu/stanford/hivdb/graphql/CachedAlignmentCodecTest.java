@@ -0,0 +1,158 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.CachedAlignment.GeneAlignment;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.CodonMutation;
+import edu.stanford.hivdb.mutations.FrameShift;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.sequences.AlignedSite;
+import edu.stanford.hivdb.viruses.Gene;
+
+public class CachedAlignmentCodecTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	private static final String NAS = "CCTCAGGTCACTCTTTGGAAACGACCCCTCGTCACAATAAAGATAGGG";
+
+	private static GeneAlignment<HIV> newPRAlignment() {
+		Gene<HIV> gene = hiv.getGene("HIV1PR");
+		return new GeneAlignment<>(
+			gene, 1, 16, 1, NAS.length(), 0, 0,
+			List.of(new AlignedSite(1, 1, 3), new AlignedSite(2, 4, 3), new AlignedSite(3, 7, 3)),
+			List.<Mutation<HIV>>of(
+				new CodonMutation<>(gene, 3, "V", "GTC", ""),
+				// insertion and deletion
+				new CodonMutation<>(gene, 6, "_", "TGG", "AAA"),
+				new CodonMutation<>(gene, 9, "-", "", "")),
+			List.of(
+				FrameShift.newInsertion(gene, 7, 1, "A"),
+				FrameShift.newDeletion(gene, 12, 2)));
+	}
+
+	private static GeneAlignment<HIV> newRTAlignment() {
+		Gene<HIV> gene = hiv.getGene("HIV1RT");
+		return new GeneAlignment<>(
+			gene, 1, 2, 1, 6, 3, 0,
+			List.of(new AlignedSite(1, 1, 3), new AlignedSite(2, 4, 3)),
+			Collections.emptyList(),
+			Collections.emptyList());
+	}
+
+	private static void assertSameGeneAlignment(GeneAlignment<HIV> expected, GeneAlignment<HIV> actual) {
+		assertSame(expected.getGene(), actual.getGene());
+		assertEquals(expected.getFirstAA(), actual.getFirstAA());
+		assertEquals(expected.getLastAA(), actual.getLastAA());
+		assertEquals(expected.getFirstNA(), actual.getFirstNA());
+		assertEquals(expected.getLastNA(), actual.getLastNA());
+		assertEquals(expected.getLeftTrimmed(), actual.getLeftTrimmed());
+		assertEquals(expected.getRightTrimmed(), actual.getRightTrimmed());
+		assertEquals(expected.getAlignedSites().size(), actual.getAlignedSites().size());
+		for (int i = 0; i < expected.getAlignedSites().size(); i ++) {
+			AlignedSite e = expected.getAlignedSites().get(i);
+			AlignedSite a = actual.getAlignedSites().get(i);
+			assertEquals(e.getPosAA(), a.getPosAA());
+			assertEquals(e.getPosNA(), a.getPosNA());
+			assertEquals(e.getLengthNA(), a.getLengthNA());
+		}
+		assertEquals(expected.getMutations().size(), actual.getMutations().size());
+		for (int i = 0; i < expected.getMutations().size(); i ++) {
+			Mutation<HIV> e = expected.getMutations().get(i);
+			Mutation<HIV> a = actual.getMutations().get(i);
+			assertEquals(e, a);
+			assertEquals(e.getTriplet(), a.getTriplet());
+			assertEquals(e.getInsertedNAs(), a.getInsertedNAs());
+			assertEquals(e.isInsertion(), a.isInsertion());
+			assertEquals(e.isDeletion(), a.isDeletion());
+		}
+		assertEquals(expected.getFrameShifts().size(), actual.getFrameShifts().size());
+		for (int i = 0; i < expected.getFrameShifts().size(); i ++) {
+			FrameShift<HIV> e = expected.getFrameShifts().get(i);
+			FrameShift<HIV> a = actual.getFrameShifts().get(i);
+			assertEquals(e.getPosition(), a.getPosition());
+			assertEquals(e.isInsertion(), a.isInsertion());
+			assertEquals(e.getSize(), a.getSize());
+			assertEquals(e.getNAs(), a.getNAs());
+		}
+	}
+
+	private static void assertRoundTrip(CachedAlignment<HIV> alignment) throws IOException {
+		CachedAlignment<HIV> decoded = CachedAlignmentCodec.decode(hiv, CachedAlignmentCodec.encode(alignment));
+		assertSame(alignment.getStrain(), decoded.getStrain());
+		assertEquals(alignment.getAlignedNAs(), decoded.getAlignedNAs());
+		assertEquals(alignment.isReverseComplement(), decoded.isReverseComplement());
+		assertEquals(alignment.getDiscardedGenes(), decoded.getDiscardedGenes());
+		assertEquals(alignment.estimateRetainedBytes(), decoded.estimateRetainedBytes());
+		assertEquals(alignment.getGeneAlignments().size(), decoded.getGeneAlignments().size());
+		for (int i = 0; i < alignment.getGeneAlignments().size(); i ++) {
+			assertSameGeneAlignment(alignment.getGeneAlignments().get(i), decoded.getGeneAlignments().get(i));
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		assertRoundTrip(new CachedAlignment<>(
+			hiv.getMainStrain(), NAS, List.of(newPRAlignment(), newRTAlignment()),
+			Collections.emptyMap(), false));
+	}
+
+	@Test
+	public void testRoundTripReversedWithDiscardedGenes() throws IOException {
+		assertRoundTrip(new CachedAlignment<>(
+			hiv.getMainStrain(), NAS, List.of(newPRAlignment()),
+			Map.of(hiv.getGene("HIV1IN"), "Too short"), true));
+	}
+
+	@Test
+	public void testRoundTripNoGenes() throws IOException {
+		assertRoundTrip(new CachedAlignment<>(
+			hiv.getMainStrain(), "", Collections.emptyList(), Collections.emptyMap(), false));
+	}
+
+	@Test
+	public void testTruncatedData() {
+		byte[] data = CachedAlignmentCodec.encode(new CachedAlignment<>(
+			hiv.getMainStrain(), NAS, List.of(newPRAlignment(), newRTAlignment()),
+			Map.of(hiv.getGene("HIV1IN"), "Too short"), false));
+		for (int size = 0; size < data.length; size ++) {
+			byte[] truncated = Arrays.copyOf(data, size);
+			assertThrows(IOException.class, () -> CachedAlignmentCodec.decode(hiv, truncated));
+		}
+	}
+
+	@Test
+	public void testOtherFormatVersion() {
+		byte[] data = CachedAlignmentCodec.encode(new CachedAlignment<>(
+			hiv.getMainStrain(), NAS, List.of(newPRAlignment()), Collections.emptyMap(), false));
+		data[3] ++;
+		assertThrows(IOException.class, () -> CachedAlignmentCodec.decode(hiv, data));
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.CachedAlignment.GeneAlignment;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.CodonMutation;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.AlignedSite;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Gene;
+
+public class CachedAlignmentTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	// PR 1-6 with I3V
+	private static final String NAS = "CCTCAGGTCACTCTTTGG";
+
+	private static CachedAlignment<HIV> newAlignment() {
+		Gene<HIV> gene = hiv.getGene("HIV1PR");
+		GeneAlignment<HIV> geneAlignment = new GeneAlignment<>(
+			gene, 1, 6, 1, NAS.length(), 0, 0,
+			List.of(
+				new AlignedSite(1, 1, 3), new AlignedSite(2, 4, 3), new AlignedSite(3, 7, 3),
+				new AlignedSite(4, 10, 3), new AlignedSite(5, 13, 3), new AlignedSite(6, 16, 3)),
+			List.of(new CodonMutation<>(gene, 3, "V", "GTC", "")),
+			Collections.emptyList());
+		return new CachedAlignment<>(
+			hiv.getMainStrain(), NAS, List.of(geneAlignment), Collections.emptyMap(), false);
+	}
+
+	@Test
+	public void testSeparatePerGeneState() {
+		CachedAlignment<HIV> alignment = newAlignment();
+		int retainedBytes = alignment.estimateRetainedBytes();
+		Gene<HIV> gene = hiv.getGene("HIV1PR");
+
+		AlignedSequence<HIV> seqA = alignment.toAlignedSequence(new Sequence("seqA", NAS));
+		AlignedSequence<HIV> seqB = alignment.toAlignedSequence(new Sequence("seqB", NAS));
+		AlignedGeneSeq<HIV> geneSeqA = seqA.getAlignedGeneSequence(gene);
+		AlignedGeneSeq<HIV> geneSeqB = seqB.getAlignedGeneSequence(gene);
+
+		assertNotSame(seqA, seqB);
+		assertNotSame(geneSeqA, geneSeqB);
+		assertEquals("seqA", seqA.getInputSequence().getHeader());
+		assertEquals("seqB", seqB.getInputSequence().getHeader());
+		assertEquals("seqA", geneSeqA.getSequence().getHeader());
+		assertEquals("seqB", geneSeqB.getSequence().getHeader());
+
+		// lazy state computed on one input is not seen by the other
+		assertEquals(geneSeqA.getAlignedAAs(), geneSeqB.getAlignedAAs());
+		assertNotSame(geneSeqA.getMutations(), geneSeqB.getMutations());
+		assertEquals(geneSeqA.getMutations(), geneSeqB.getMutations());
+		assertNotSame(seqA.getMutations(), seqB.getMutations());
+
+		// nothing computed on the AlignedSequences is kept by the cache entry
+		assertEquals(retainedBytes, alignment.estimateRetainedBytes());
+		assertNotSame(geneSeqA, alignment.toAlignedSequence(new Sequence("seqA", NAS)).getAlignedGeneSequence(gene));
+	}
+
+	@Test
+	public void testRoundTripThroughAlignedSequence() {
+		CachedAlignment<HIV> alignment = newAlignment();
+		CachedAlignment<HIV> copy = CachedAlignment.of(alignment.toAlignedSequence(new Sequence("seqA", NAS)));
+		assertEquals(alignment.getAlignedNAs(), copy.getAlignedNAs());
+		assertEquals(alignment.estimateRetainedBytes(), copy.estimateRetainedBytes());
+		GeneAlignment<HIV> expected = alignment.getGeneAlignments().get(0);
+		GeneAlignment<HIV> actual = copy.getGeneAlignments().get(0);
+		assertEquals(expected.getGene(), actual.getGene());
+		assertEquals(expected.getFirstAA(), actual.getFirstAA());
+		assertEquals(expected.getLastAA(), actual.getLastAA());
+		assertEquals(expected.getMutations(), actual.getMutations());
+	}
+
+}
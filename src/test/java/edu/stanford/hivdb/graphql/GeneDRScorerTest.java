@@ -0,0 +1,163 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.viruses.Gene;
+
+public class GeneDRScorerTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	private static final Map<String, Integer> SIZES = Map.of("HIV1PR", 99, "HIV1RT", 560, "HIV1IN", 288);
+
+	private static List<Gene<HIV>> getGenes(String... geneNames) {
+		List<Gene<HIV>> genes = new ArrayList<>();
+		for (String geneName : geneNames) {
+			genes.add(hiv.getGene(geneName));
+		}
+		return genes;
+	}
+
+	private static List<String> score(
+		List<Gene<HIV>> genes, Function<List<Gene<HIV>>, Map<Gene<HIV>, String>> scorer,
+		RequestDeadline deadline, ForkJoinPool pool
+	) {
+		return GeneDRScorer.score(
+			genes, gene -> gene, gene -> SIZES.get(gene.getName()), scorer, deadline, pool);
+	}
+
+	@Test
+	public void testResultOrder() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Set<String> scoredInPool = ConcurrentHashMap.newKeySet();
+			List<String> results = score(
+				getGenes("HIV1PR", "HIV1RT", "HIV1IN"),
+				genes -> {
+					Map<Gene<HIV>, String> scored = new LinkedHashMap<>();
+					for (int i = genes.size() - 1; i >= 0; i --) {
+						Gene<HIV> gene = genes.get(i);
+						scored.put(gene, gene.getName());
+						Thread thread = Thread.currentThread();
+						if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == pool) {
+							scoredInPool.add(gene.getName());
+						}
+					}
+					return scored;
+				},
+				RequestDeadline.NONE, pool);
+			assertEquals(List.of("HIV1PR", "HIV1RT", "HIV1IN"), results);
+			assertEquals(Set.of("HIV1PR", "HIV1RT", "HIV1IN"), scoredInPool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSkipsUnscoredGenes() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			List<String> results = score(
+				getGenes("HIV1IN", "HIV1PR", "HIV1RT"),
+				genes -> {
+					Map<Gene<HIV>, String> scored = new LinkedHashMap<>();
+					for (Gene<HIV> gene : genes) {
+						if (!gene.getName().equals("HIV1RT")) {
+							scored.put(gene, gene.getName());
+						}
+					}
+					return scored;
+				},
+				RequestDeadline.NONE, pool);
+			assertEquals(List.of("HIV1IN", "HIV1PR"), results);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testDeadlineAbort() {
+		// one worker, so IN can only start after RT, which outlives the deadline
+		ForkJoinPool pool = new ForkJoinPool(1);
+		try {
+			Set<String> started = ConcurrentHashMap.newKeySet();
+			RuntimeException e = assertThrows(RuntimeException.class, () -> score(
+				getGenes("HIV1RT", "HIV1IN", "HIV1PR"),
+				genes -> {
+					Map<Gene<HIV>, String> scored = new LinkedHashMap<>();
+					for (Gene<HIV> gene : genes) {
+						started.add(gene.getName());
+						if (gene.getName().equals("HIV1RT")) {
+							try {
+								Thread.sleep(200);
+							}
+							catch (InterruptedException ie) {
+								throw new RuntimeException(ie);
+							}
+						}
+						scored.put(gene, gene.getName());
+					}
+					return scored;
+				},
+				RequestDeadline.afterMillis(50), pool));
+			assertTrue(RequestDeadline.isTimeout(e));
+			assertTrue(started.contains("HIV1RT"));
+			assertFalse(started.contains("HIV1IN"));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testExpiredDeadline() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			RequestDeadline deadline = RequestDeadline.atEpochMillis(System.currentTimeMillis() - 1000);
+			RuntimeException e = assertThrows(RuntimeException.class, () -> score(
+				getGenes("HIV1PR", "HIV1RT"),
+				genes -> {
+					throw new AssertionError("scored after the deadline");
+				},
+				deadline, pool));
+			assertTrue(RequestDeadline.isTimeout(e));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+}
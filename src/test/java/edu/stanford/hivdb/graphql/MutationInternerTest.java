@@ -0,0 +1,93 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+
+public class MutationInternerTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	private static Mutation<HIV> parseWithCore(String mutation) {
+		return hiv.newMutationSet(List.of(mutation)).first();
+	}
+
+	@Test
+	public void testEqualMutationsShareInstance() {
+		MutationSet<HIV> muts = MutationInterner.newMutationSet(hiv, null, List.of("RT:M184V", "PR:L90M"));
+		MutationSet<HIV> again = MutationInterner.newMutationSet(hiv, null, List.of("RT:M184V"));
+		MutationSet<HIV> withGene = MutationInterner.newMutationSet(hiv, hiv.getGene("HIV1RT"), List.of("M184V"));
+		assertEquals(hiv.newMutationSet(List.of("RT:M184V", "PR:L90M")), muts);
+		assertSame(muts.last(), again.first());
+		assertSame(again.first(), withGene.first());
+	}
+
+	@Test
+	public void testIntern() {
+		Mutation<HIV> mut = parseWithCore("RT:K103N");
+		Mutation<HIV> other = parseWithCore("RT:K103N");
+		assertNotSame(mut, other);
+		assertSame(MutationInterner.intern(mut), MutationInterner.intern(other));
+	}
+
+	@Test
+	public void testInternedMutationsAreWeaklyReferenced() throws InterruptedException {
+		Mutation<HIV> mut = parseWithCore("IN:Q148H");
+		assertSame(mut, MutationInterner.intern(mut));
+		WeakReference<Mutation<HIV>> ref = new WeakReference<>(mut);
+		mut = null;
+		List<byte[]> garbage = new ArrayList<>();
+		for (int i = 0; i < 100 && ref.get() != null; i ++) {
+			garbage.add(new byte[1 << 20]);
+			garbage.clear();
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull("interned mutation is still strongly reachable", ref.get());
+
+		// a collected mutation is interned again from the new instance
+		Mutation<HIV> fresh = parseWithCore("IN:Q148H");
+		assertSame(fresh, MutationInterner.intern(fresh));
+	}
+
+	@Test
+	public void testMalformedInput() {
+		RuntimeException expected = assertThrows(
+			RuntimeException.class, () -> hiv.newMutationSet(List.of("RT:184XYZ!")));
+		for (int i = 0; i < 2; i ++) {
+			// errors are not memoized; each call rethrows the error of core
+			RuntimeException e = assertThrows(
+				RuntimeException.class,
+				() -> MutationInterner.newMutationSet(hiv, null, List.of("RT:M184V", "RT:184XYZ!")));
+			assertEquals(expected.getClass(), e.getClass());
+			assertEquals(expected.getMessage(), e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+
+public class PackedMutationSetTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	// insertions, deletions and stop codons without mixtures
+	private static final MutationSet<HIV> SIMPLE = hiv.newMutationSet(List.of(
+		"PR:L10F", "PR:D30N", "PR:L90M", "RT:K65R", "RT:D67d", "RT:T69i",
+		"RT:W88*", "RT:K103N", "RT:E138A", "RT:M184V", "IN:E92Q", "IN:Q148H"));
+
+	// same positions with mixtures, partially overlapping the custom list
+	private static final MutationSet<HIV> MIXED = hiv.newMutationSet(List.of(
+		"PR:L10FV", "PR:D30N", "PR:L90LM", "RT:K65R", "RT:D67d", "RT:T69i",
+		"RT:W88*", "RT:K103NS", "RT:E138A", "RT:M184VI", "IN:E92Q", "IN:Q148HKR"));
+
+	private static final List<String> CUSTOM_LIST = List.of(
+		"PR:L90M", "RT:K65R", "RT:D67d", "RT:T69i", "RT:W88*", "RT:K103S",
+		"RT:M184V", "RT:Y181C", "IN:Q148H");
+
+	private static List<String> describe(Collection<? extends Mutation<?>> muts) {
+		return muts.stream()
+			.map(mut -> mut.getGene().getName() + ":" + mut.getPosition() + mut.getAAs())
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * Checks the packed result against the result of core. Returns false
+	 * if the packed filter gave up, in which case callers fall back to core.
+	 */
+	private static boolean assertSameAsCore(String message, MutationSet<HIV> expected, PackedMutationSet<HIV> packed) {
+		if (packed == null) {
+			return false;
+		}
+		assertEquals(message, describe(expected), describe(packed.toMutationSet()));
+		return true;
+	}
+
+	private static void assertSubtractsBy(Function<MutationSet<HIV>, MutationSet<HIV>> subset) {
+		for (MutationSet<HIV> muts : List.of(SIMPLE, MIXED)) {
+			MutationSet<HIV> other = subset.apply(muts);
+			PackedMutationSet<HIV> packedOther = PackedMutationSet.of(other);
+			boolean packedUsed = assertSameAsCore(
+				describe(muts).toString(),
+				muts.subtractsBy(other),
+				packedOther == null ? null : PackedMutationSet.of(muts).subtractsBy(packedOther));
+			if (muts == SIMPLE) {
+				assertTrue("simple mutations are subtracted on the packed set", packedUsed);
+			}
+		}
+	}
+
+	@Test
+	public void testPack() {
+		assertSame(SIMPLE, PackedMutationSet.of(SIMPLE).toMutationSet());
+		assertEquals(SIMPLE.size(), PackedMutationSet.of(SIMPLE).size());
+		assertNotNull(PackedMutationSet.of(MIXED));
+		assertEquals(0, PackedMutationSet.of(new MutationSet<HIV>()).size());
+	}
+
+	@Test
+	public void testNotDRM() {
+		assertSubtractsBy(MutationSet::getDRMs);
+	}
+
+	@Test
+	public void testNotSDRM() {
+		assertSubtractsBy(MutationSet::getSDRMs);
+	}
+
+	@Test
+	public void testNotTSM() {
+		assertSubtractsBy(MutationSet::getTSMs);
+	}
+
+	@Test
+	public void testCustomList() {
+		MutationSet<HIV> filterSet = MutationInterner.newMutationSet(hiv, null, CUSTOM_LIST);
+		PackedMutationSet<HIV> packedFilterSet = PackedMutationSet.of(filterSet);
+		assertTrue(assertSameAsCore(
+			"simple", SIMPLE.intersectsWith(filterSet),
+			PackedMutationSet.of(SIMPLE).intersectsWith(packedFilterSet)));
+		// M184VI and M184V partially overlap and must be split by core
+		assertNull(PackedMutationSet.of(MIXED).intersectsWith(packedFilterSet));
+		MutationSet<HIV> disjoint = hiv.newMutationSet(List.of("RT:M184I", "RT:K103N", "IN:Q148R"));
+		assertTrue(assertSameAsCore(
+			"disjoint", SIMPLE.intersectsWith(disjoint),
+			PackedMutationSet.of(SIMPLE).intersectsWith(PackedMutationSet.of(disjoint))));
+	}
+
+	@Test
+	public void testIncludeGenes() {
+		for (MutationSet<HIV> muts : List.of(SIMPLE, MIXED)) {
+			for (Set<String> includeGenes : List.of(Set.of("PR", "IN"), Set.of("RT"), Set.<String>of())) {
+				assertTrue(assertSameAsCore(
+					includeGenes.toString(),
+					muts.filterByNoSplit(mut -> includeGenes.contains(mut.getAbstractGene())),
+					PackedMutationSet.of(muts).filterByGenes(includeGenes)));
+			}
+		}
+	}
+
+	@Test
+	public void testPositionRange() {
+		long[][] ranges = {{1, 99}, {65, 69}, {88, 184}, {185, 1000}};
+		for (MutationSet<HIV> muts : List.of(SIMPLE, MIXED)) {
+			for (long[] range : ranges) {
+				assertTrue(assertSameAsCore(
+					range[0] + "-" + range[1],
+					muts.filterByNoSplit(mut -> mut.getPosition() >= range[0] && mut.getPosition() <= range[1]),
+					PackedMutationSet.of(muts).filterByPositionRange(range[0], range[1])));
+			}
+		}
+	}
+
+	@Test
+	public void testFilter() {
+		for (MutationSet<HIV> muts : List.of(SIMPLE, MIXED)) {
+			assertTrue(assertSameAsCore(
+				"insertions or deletions",
+				muts.filterByNoSplit(mut -> mut.isInsertion() || mut.isDeletion()),
+				PackedMutationSet.of(muts).filter(mut -> mut.isInsertion() || mut.isDeletion())));
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.PositionCodonReadsDef.CodonReadsIndex;
+
+public class PositionCodonReadsDefTest {
+
+	// proportions are sorted descending
+	private static final double[] PROPS = {0.5, 0.3, 0.3, 0.1, 0.01};
+
+	@Test
+	public void testLowerThan() {
+		assertEquals(0, CodonReadsIndex.lowerThan(PROPS, 0.6));
+		assertEquals(1, CodonReadsIndex.lowerThan(PROPS, 0.5));
+		assertEquals(3, CodonReadsIndex.lowerThan(PROPS, 0.3));
+		assertEquals(4, CodonReadsIndex.lowerThan(PROPS, 0.05));
+		assertEquals(5, CodonReadsIndex.lowerThan(PROPS, 0.01));
+		assertEquals(5, CodonReadsIndex.lowerThan(PROPS, Double.NEGATIVE_INFINITY));
+	}
+
+	@Test
+	public void testNotHigherThan() {
+		assertEquals(0, CodonReadsIndex.notHigherThan(PROPS, Double.POSITIVE_INFINITY));
+		assertEquals(0, CodonReadsIndex.notHigherThan(PROPS, 0.5));
+		assertEquals(1, CodonReadsIndex.notHigherThan(PROPS, 0.4));
+		assertEquals(1, CodonReadsIndex.notHigherThan(PROPS, 0.3));
+		assertEquals(3, CodonReadsIndex.notHigherThan(PROPS, 0.2));
+		assertEquals(5, CodonReadsIndex.notHigherThan(PROPS, 0.001));
+	}
+
+	@Test
+	public void testProportionWindow() {
+		// codons with proportion in [0.1, 0.3]
+		int start = CodonReadsIndex.notHigherThan(PROPS, 0.3);
+		int stop = CodonReadsIndex.lowerThan(PROPS, 0.1);
+		assertEquals(1, start);
+		assertEquals(4, stop);
+	}
+
+	@Test
+	public void testEmpty() {
+		double[] empty = new double[0];
+		assertEquals(0, CodonReadsIndex.lowerThan(empty, 0.1));
+		assertEquals(0, CodonReadsIndex.notHigherThan(empty, 0.1));
+	}
+
+}
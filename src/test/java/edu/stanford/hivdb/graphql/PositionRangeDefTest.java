@@ -0,0 +1,75 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.PositionRangeDef.GroupedPositionIndex;
+import edu.stanford.hivdb.graphql.PositionRangeDef.PositionIndex;
+
+public class PositionRangeDefTest {
+
+	private static int getPosition(String item) {
+		return Integer.parseInt(item.substring(item.indexOf(':') + 1));
+	}
+
+	private static Object getGroup(String item) {
+		return item.substring(0, item.indexOf(':'));
+	}
+
+	@Test
+	public void testSlice() {
+		PositionIndex<String> index = new PositionIndex<>(
+			Arrays.asList("RT:41", "RT:10", "RT:65", "RT:41", "RT:184"),
+			PositionRangeDefTest::getPosition);
+		assertEquals(Arrays.asList("RT:41", "RT:41", "RT:65"), index.slice(41, 65));
+		assertEquals(Arrays.asList("RT:10", "RT:41", "RT:41"), index.slice(Long.MIN_VALUE, 64));
+		assertEquals(Arrays.asList("RT:65", "RT:184"), index.slice(42, Long.MAX_VALUE));
+		assertEquals(
+			Arrays.asList("RT:10", "RT:41", "RT:41", "RT:65", "RT:184"),
+			index.slice(Long.MIN_VALUE, Long.MAX_VALUE));
+		assertEquals(Collections.emptyList(), index.slice(66, 183));
+		assertEquals(Collections.emptyList(), index.slice(65, 41));
+	}
+
+	@Test
+	public void testSliceEmpty() {
+		PositionIndex<String> index = new PositionIndex<>(
+			Collections.emptyList(), PositionRangeDefTest::getPosition);
+		assertEquals(Collections.emptyList(), index.slice(1, 100));
+	}
+
+	@Test
+	public void testGroupedSlice() {
+		List<String> items = Arrays.asList("RT:65", "PR:90", "RT:41", "IN:66", "PR:46", "RT:184");
+		GroupedPositionIndex<String> index = new GroupedPositionIndex<>(
+			items, PositionRangeDefTest::getGroup, PositionRangeDefTest::getPosition);
+		// groups keep their first-seen order; items are sorted within groups
+		assertEquals(Arrays.asList("RT:65", "PR:46", "PR:90", "IN:66"), index.slice(46, 90));
+		assertEquals(Arrays.asList("RT:41", "RT:65", "RT:184", "PR:46", "PR:90", "IN:66"), index.slice(Long.MIN_VALUE, Long.MAX_VALUE));
+		assertEquals(Collections.emptyList(), index.slice(200, 300));
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+import static graphql.Scalars.GraphQLString;
+import static graphql.schema.GraphQLCodeRegistry.newCodeRegistry;
+import static graphql.schema.FieldCoordinates.coordinates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Test;
+
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.GraphQLContext;
+import graphql.GraphQLError;
+import graphql.execution.DataFetcherResult;
+import graphql.schema.DataFetcher;
+import graphql.schema.GraphQLCodeRegistry;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLSchema;
+
+import static edu.stanford.hivdb.graphql.Exceptions.RequestTimeoutException;
+
+public class RequestDeadlineTest {
+
+	@Test
+	public void testNone() {
+		assertSame(RequestDeadline.NONE, RequestDeadline.afterMillis(0));
+		assertFalse(RequestDeadline.NONE.isExpired());
+		RequestDeadline.NONE.check("gene RT");
+	}
+
+	@Test(expected = RequestTimeoutException.class)
+	public void testCheckExpired() throws InterruptedException {
+		RequestDeadline deadline = RequestDeadline.atEpochMillis(System.currentTimeMillis() - 1000);
+		Thread.sleep(5);
+		assertTrue(deadline.isExpired());
+		deadline.check("gene RT");
+	}
+
+	@Test
+	public void testBound() {
+		RequestDeadline deadline = RequestDeadline.afterMillis(20);
+		CompletableFuture<String> never = new CompletableFuture<>();
+		CompletableFuture<String> bounded = deadline.bound(never, "sequence A");
+		try {
+			bounded.join();
+			fail("the bounded future should time out");
+		}
+		catch (CompletionException e) {
+			assertTrue(RequestDeadline.isTimeout(e));
+			assertTrue(e.getCause().getMessage().contains("sequence A"));
+		}
+		assertTrue(never.isCompletedExceptionally());
+	}
+
+	// resolves like the sequenceAnalysis root field: items not done by the deadline become null with an error
+	private static DataFetcher<CompletableFuture<List<DataFetcherResult<String>>>> itemsDataFetcher = env -> {
+		RequestDeadline deadline = RequestDeadline.of(env);
+		List<CompletableFuture<String>> items = Arrays.asList(
+			CompletableFuture.completedFuture("A"),
+			CompletableFuture.completedFuture("B"),
+			new CompletableFuture<>(),
+			new CompletableFuture<>());
+		List<CompletableFuture<DataFetcherResult<String>>> results = new ArrayList<>();
+		for (int i = 0; i < items.size(); i ++) {
+			int idx = i;
+			results.add(
+				deadline.bound(items.get(i), "item " + i)
+				.handle((item, e) -> {
+					if (e == null) {
+						return DataFetcherResult.<String>newResult().data(item).build();
+					}
+					assertTrue(RequestDeadline.isTimeout(e));
+					return RequestDeadline.<String>toTimeoutResult(env, idx, e);
+				}));
+		}
+		return CompletableFuture
+			.allOf(results.toArray(new CompletableFuture<?>[0]))
+			.thenApply(v -> CompletableFutures.join(results));
+	};
+
+	@Test
+	public void testPartialResults() {
+		GraphQLObjectType oRoot = GraphQLObjectType.newObject()
+			.name("Root")
+			.field(field -> field
+				.name("items")
+				.type(new GraphQLList(GraphQLString)))
+			.build();
+		GraphQLCodeRegistry codeRegistry = newCodeRegistry()
+			.dataFetcher(coordinates("Root", "items"), itemsDataFetcher)
+			.build();
+		GraphQL graphQL = GraphQL.newGraphQL(
+			GraphQLSchema.newSchema().query(oRoot).codeRegistry(codeRegistry).build()
+		).build();
+		GraphQLContext context = GraphQLContext.newContext()
+			.of(RequestDeadline.CONTEXT_KEY, System.currentTimeMillis() + 50)
+			.build();
+		ExecutionResult result = graphQL.execute(
+			ExecutionInput.newExecutionInput().query("{ items }").context(context).build());
+
+		Map<String, List<String>> data = result.getData();
+		assertEquals(Arrays.asList("A", "B", null, null), data.get("items"));
+		assertEquals(2, result.getErrors().size());
+		for (int i = 0; i < 2; i ++) {
+			GraphQLError error = result.getErrors().get(i);
+			assertEquals(Arrays.asList("items", i + 2), error.getPath());
+			assertTrue(error.getMessage().contains("item " + (i + 2)));
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.SequenceReadsHistogramIndex.SiteType;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.PositionCodonReads;
+import edu.stanford.hivdb.seqreads.SequenceReads;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogram;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogramByCodonReads;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogram.AggregationOption;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogram.HistogramBin;
+import edu.stanford.hivdb.seqreads.SequenceReadsHistogramByCodonReads.HistogramByCodonReadsBin;
+import edu.stanford.hivdb.viruses.Gene;
+
+public class SequenceReadsHistogramIndexTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	private static SequenceReadsHistogramIndex newSmallIndex() {
+		return new SequenceReadsHistogramIndex.Builder()
+			.addNumPositions(3)
+			.add("RT", 41, "CTG", 'L', 0.005, 50, SequenceReadsHistogramIndex.FLAG_DRM)
+			.add("RT", 41, "TTG", 'L', 0.05, 500, SequenceReadsHistogramIndex.FLAG_DRM)
+			.add("RT", 65, "AGA", 'R', 0.015, 150, SequenceReadsHistogramIndex.FLAG_UNUSUAL)
+			.add("RT", 65, "TGA", '*', 0.3, 3000, SequenceReadsHistogramIndex.FLAG_STOP_CODON)
+			.build();
+	}
+
+	private static List<Integer> counts(List<HistogramBin> bins) {
+		return bins.stream().map(bin -> bin.count).collect(Collectors.toList());
+	}
+
+	private static List<Integer> countsByReads(List<HistogramByCodonReadsBin> bins) {
+		return bins.stream().map(bin -> bin.count).collect(Collectors.toList());
+	}
+
+	@Test
+	public void testGetSites() {
+		SequenceReadsHistogramIndex index = newSmallIndex();
+		double[] ticks = {0.001, 0.01, 0.1};
+		assertEquals(3, index.getNumPositions());
+		assertEquals(
+			Arrays.asList(2, 1, 0),
+			counts(index.getSites(SiteType.USUAL, 0.001, 0.2, ticks, true, AggregationOption.Codon)));
+		assertEquals(
+			Arrays.asList(1, 1, 0),
+			counts(index.getSites(SiteType.USUAL, 0.001, 0.2, ticks, false, AggregationOption.Codon)));
+		assertEquals(
+			Arrays.asList(1, 1, 0),
+			counts(index.getSites(SiteType.USUAL, 0.001, 0.2, ticks, true, AggregationOption.Position)));
+		assertEquals(
+			Arrays.asList(2, 2, 1),
+			counts(index.getSites(SiteType.USUAL, 0.001, 0.5, ticks, true, AggregationOption.Position)));
+		assertEquals(
+			Arrays.asList(1, 1, 1),
+			counts(index.getSites(SiteType.USUAL, 0.001, 0.5, ticks, false, AggregationOption.Position)));
+		assertEquals(
+			Arrays.asList(1, 1, 0),
+			counts(index.getSites(SiteType.UNUSUAL, 0.001, 0.2, ticks, true, AggregationOption.AminoAcid)));
+		List<HistogramBin> bins = index.getSites(SiteType.DRM, 0.001, 0.2, ticks, false, AggregationOption.Codon);
+		assertEquals(Double.valueOf(0.01), bins.get(1).percentStart);
+		assertEquals(Double.valueOf(0.2), bins.get(2).percentStop);
+	}
+
+	@Test
+	public void testGetSitesByCodonReads() {
+		SequenceReadsHistogramIndex index = newSmallIndex();
+		long[] cutoffs = {16, 100, 1000, 5000};
+		assertEquals(
+			Arrays.asList(2, 1, 0, 0),
+			countsByReads(index.getSitesByCodonReads(SiteType.DRM, cutoffs, AggregationOption.Codon)));
+		assertEquals(
+			Arrays.asList(1, 1, 0, 0),
+			countsByReads(index.getSitesByCodonReads(SiteType.DRM, cutoffs, AggregationOption.Position)));
+		assertEquals(
+			Arrays.asList(2, 2, 1, 0),
+			countsByReads(index.getSitesByCodonReads(SiteType.USUAL, cutoffs, AggregationOption.Position)));
+		assertEquals(
+			Arrays.asList(1, 1, 1, 0),
+			countsByReads(index.getSitesByCodonReads(SiteType.STOP_CODON, cutoffs, AggregationOption.AminoAcid)));
+	}
+
+	private static final String[] CODONS = {
+		"AAA", "AAG", "AGA", "ATG", "GTG", "CTG", "TTG", "TAA", "TGA", "GAT"
+	};
+
+	// deep-coverage sample: mixed codons at every RT position
+	private static SequenceReads<HIV> newSequenceReads() {
+		Random random = new Random(2021);
+		Gene<HIV> gene = hiv.getMainStrain().getGene("RT");
+		List<PositionCodonReads<HIV>> allReads = new ArrayList<>();
+		for (int pos = 1; pos <= 560; pos ++) {
+			long totalReads = 1000 + random.nextInt(99000);
+			Map<String, Long> codonReads = new LinkedHashMap<>();
+			long remains = totalReads;
+			for (String codon : CODONS) {
+				if (remains == 0 || random.nextInt(3) == 0) {
+					continue;
+				}
+				long reads = Math.min(remains, (long) (totalReads * Math.pow(10, -4 * random.nextDouble())));
+				codonReads.put(codon, reads);
+				remains -= reads;
+			}
+			allReads.add(new PositionCodonReads<>(gene, pos, totalReads, codonReads));
+		}
+		return SequenceReads.fromCodonReadsTable(
+			"sample", hiv.getMainStrain(), allReads, Collections.emptyList(),
+			1.0, 0.0, 1L, 1L);
+	}
+
+	private static final Map<SiteType, Function<SequenceReadsHistogram<HIV>, List<HistogramBin>>> SITES = Map.of(
+		SiteType.USUAL, SequenceReadsHistogram::getUsualSites,
+		SiteType.DRM, SequenceReadsHistogram::getDrmSites,
+		SiteType.UNUSUAL, SequenceReadsHistogram::getUnusualSites,
+		SiteType.UNUSUAL_APOBEC, SequenceReadsHistogram::getUnusualApobecSites,
+		SiteType.UNUSUAL_NON_APOBEC, SequenceReadsHistogram::getUnusualNonApobecSites,
+		SiteType.APOBEC, SequenceReadsHistogram::getApobecSites,
+		SiteType.APOBEC_DRM, SequenceReadsHistogram::getApobecDrmSites,
+		SiteType.STOP_CODON, SequenceReadsHistogram::getStopCodonSites
+	);
+
+	private static final Map<SiteType, Function<SequenceReadsHistogramByCodonReads<HIV>, List<HistogramByCodonReadsBin>>> SITES_BY_READS = Map.of(
+		SiteType.USUAL, SequenceReadsHistogramByCodonReads::getUsualSites,
+		SiteType.DRM, SequenceReadsHistogramByCodonReads::getDrmSites,
+		SiteType.UNUSUAL, SequenceReadsHistogramByCodonReads::getUnusualSites,
+		SiteType.UNUSUAL_APOBEC, SequenceReadsHistogramByCodonReads::getUnusualApobecSites,
+		SiteType.UNUSUAL_NON_APOBEC, SequenceReadsHistogramByCodonReads::getUnusualNonApobecSites,
+		SiteType.APOBEC, SequenceReadsHistogramByCodonReads::getApobecSites,
+		SiteType.APOBEC_DRM, SequenceReadsHistogramByCodonReads::getApobecDrmSites,
+		SiteType.STOP_CODON, SequenceReadsHistogramByCodonReads::getStopCodonSites
+	);
+
+	@Test
+	public void testGetSitesMatchesCoreHistogram() {
+		SequenceReads<HIV> seqReads = newSequenceReads();
+		SequenceReadsHistogramIndex index = SequenceReadsHistogramIndex.of(seqReads);
+		double[] ticks = SequenceReadsHistogramIndex.toBinTicks(0.001, 0.25, 7);
+		Double[] boxedTicks = Arrays.stream(ticks).boxed().toArray(Double[]::new);
+		for (AggregationOption aggBy : AggregationOption.values()) {
+			for (boolean cumulative : new boolean[] {true, false}) {
+				SequenceReadsHistogram<HIV> expected = seqReads.getHistogram(0.001, 0.25, boxedTicks, cumulative, aggBy);
+				assertEquals(expected.getNumPositions(), Integer.valueOf(index.getNumPositions()));
+				for (SiteType type : SiteType.values()) {
+					String message = type + " by " + aggBy + (cumulative ? " (cumulative)" : "");
+					assertEquals(
+						message,
+						counts(SITES.get(type).apply(expected)),
+						counts(index.getSites(type, 0.001, 0.25, ticks, cumulative, aggBy)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGetSitesByCodonReadsMatchesCoreHistogram() {
+		SequenceReads<HIV> seqReads = newSequenceReads();
+		SequenceReadsHistogramIndex index = SequenceReadsHistogramIndex.of(seqReads);
+		long[] cutoffs = {1, 16, 100, 1000, 10000, 100000};
+		Long[] boxedCutoffs = Arrays.stream(cutoffs).boxed().toArray(Long[]::new);
+		for (AggregationOption aggBy : AggregationOption.values()) {
+			SequenceReadsHistogramByCodonReads<HIV> expected = seqReads.getHistogramByCodonReads(boxedCutoffs, aggBy);
+			for (SiteType type : SiteType.values()) {
+				assertEquals(
+					type + " by " + aggBy,
+					countsByReads(SITES_BY_READS.get(type).apply(expected)),
+					countsByReads(index.getSitesByCodonReads(type, cutoffs, aggBy)));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+
+    Copyright (C) 2017 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.graphql.MutationSetDef.mutsFilterOption;
+import edu.stanford.hivdb.hivfacts.HIV;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sequences.GeneRegions;
+import graphql.execution.DataFetcherResult;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.DataFetchingEnvironmentImpl;
+import graphql.schema.GraphQLList;
+
+import static graphql.Scalars.GraphQLString;
+
+public class UnsequencedRegionsDefTest {
+
+	private static final HIV hiv = HIV.getInstance();
+
+	public static class MutationsHolder {
+		private final MutationSet<HIV> mutations;
+
+		public MutationsHolder(MutationSet<HIV> mutations) {
+			this.mutations = mutations;
+		}
+
+		public MutationSet<HIV> getMutations() { return mutations; }
+	}
+
+	private static MutationSet<HIV> newMutations() {
+		return hiv.newMutationSet(List.of(
+			"PR:I3V", "PR:L90M", "RT:M41L", "RT:M184V", "IN:Q148H"));
+	}
+
+	private static MutationSet<HIV> fetchSequencedOnly(Object source, Object localContext) throws Exception {
+		DataFetchingEnvironment env = DataFetchingEnvironmentImpl.newDataFetchingEnvironment()
+			.source(source)
+			.localContext(localContext)
+			.fieldType(new GraphQLList(GraphQLString))
+			.arguments(Map.of("filterOptions", List.of(mutsFilterOption.SEQUENCED_ONLY)))
+			.build();
+		DataFetcherResult<MutationSet<HIV>> result = (
+			MutationSetDef.newMutationSetDataFetcher(hiv, "mutations").get(env));
+		assertSame(source, result.getLocalContext());
+		return result.getData();
+	}
+
+	/**
+	 * The SEQUENCED_ONLY filter as the baseline wrote it, with the
+	 * uncached lookup on the local context.
+	 */
+	private static MutationSet<HIV> baselineSequencedOnly(MutationSet<HIV> mutations, Object localContext) {
+		return mutations.filterByNoSplit(mut -> !mut.isUnsequenced(
+			UnsequencedRegionsDef.getUnsequencedRegionsFromSource(localContext, mut.getGene())));
+	}
+
+	@Test
+	public void testAnalysisContextHasNoRegions() {
+		AnalysisContext ctx = new AnalysisContext("source", null, AnalysisPlan.NO_STAGES);
+		assertNull(UnsequencedRegionsDef.getUnsequencedRegionsFromSource(ctx, null));
+		assertNull(UnsequencedRegionsDef.getCachedUnsequencedRegions(ctx, null));
+		assertNull(UnsequencedRegionsDef.getCachedUnsequencedRegions(null, null));
+	}
+
+	@Test
+	public void testCachedRegions() {
+		GeneRegions<HIV> regions = GeneRegions.newGeneRegions(hiv.getGene("HIV1PR"), 1, 50);
+		assertSame(regions, UnsequencedRegionsDef.getCachedUnsequencedRegions(regions, hiv.getGene("HIV1PR")));
+		assertSame(regions, UnsequencedRegionsDef.getCachedUnsequencedRegions(regions, hiv.getGene("HIV1PR")));
+	}
+
+	@Test
+	public void testSequencedOnlyWithoutRegions() throws Exception {
+		MutationSet<HIV> mutations = newMutations();
+		MutationsHolder source = new MutationsHolder(mutations);
+		// below a root field the local context is an AnalysisContext, where
+		// the baseline had none
+		MutationSet<HIV> expected = baselineSequencedOnly(mutations, null);
+		assertEquals(expected, fetchSequencedOnly(source, null));
+		assertEquals(
+			expected,
+			fetchSequencedOnly(source, new AnalysisContext(source, null, AnalysisPlan.NO_STAGES)));
+	}
+
+	@Test
+	public void testSequencedOnlyWithRegions() throws Exception {
+		MutationSet<HIV> mutations = newMutations();
+		MutationsHolder source = new MutationsHolder(mutations);
+		GeneRegions<HIV> regions = GeneRegions.newGeneRegions(hiv.getGene("HIV1PR"), 1, 50);
+		MutationSet<HIV> expected = baselineSequencedOnly(mutations, regions);
+		assertEquals(expected, fetchSequencedOnly(source, regions));
+		// answered from the cache
+		assertEquals(expected, fetchSequencedOnly(source, regions));
+		assertFalse(expected.contains(mutations.get(hiv.getGene("HIV1PR"), 3)));
+	}
+
+}